@@ -0,0 +1,181 @@
+package comp559.lcp;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.vecmath.Point2d;
+
+/**
+ * Scene loading and broad phase selection shared by the broad phase benchmarks.
+ * @author kry
+ */
+class BenchmarkScenes {
+
+    /** time step used to settle the scenes and to step them while measuring */
+    static final double DT = 0.05;
+
+    /** number of steps timed by each measurement, all from the same snapshot */
+    static final int STEPS = 20;
+
+    /** broad phase modes, as used in the mode parameter of the benchmarks */
+    static final String NAIVE = "naive";
+    static final String SPATIAL_HASH = "spatialHash";
+    static final String SPATIAL_HASH_PARALLEL = "spatialHashParallel";
+    static final String SWEEP_AND_PRUNE = "sweepAndPrune";
+    static final String SWEEP_AND_PRUNE_PARALLEL = "sweepAndPruneParallel";
+    static final String MORTON = "morton";
+    static final String AABB_TREE = "aabbTree";
+    static final String AABB_TREE_PAIR_CACHE = "aabbTreePairCache";
+
+    /**
+     * Creates an empty system ready to be stepped without the viewer.  Body indices
+     * are global, so they are restarted from zero as when LCPApp loads a scene.
+     * @return the system
+     */
+    static RigidBodySystem createSystem() {
+        RigidBodySystem system = new RigidBodySystem();
+        system.mouseSpring = new MouseSpringForce( new Point2d() );
+        system.clear();
+        return system;
+    }
+
+    /**
+     * Loads a scene, either an image through the ImageBlocker, or a text file in the 
+     * format written by LCPApp's saveTxt
+     * @param filename
+     * @return the system holding the scene
+     * @throws IOException
+     */
+    static RigidBodySystem load( String filename ) throws IOException {
+        RigidBodySystem system = createSystem();
+        system.name = filename;
+        if ( filename.endsWith( ".txt" ) ) {
+            system.loadTxt( new File( filename ) );
+        } else {
+            ImageBlocker blocker = new ImageBlocker( filename, 0.05f );
+            system.SHinit( blocker.width, blocker.height );
+            system.bodies.addAll( blocker.bodies );
+            system.tuneGrid();
+        }
+        return system;
+    }
+
+    /**
+     * Runs the factory on an image until the system holds the requested number of bodies
+     * @param filename
+     * @param numBodies
+     * @return the system holding the pinned bodies of the image and the factory bodies
+     */
+    static RigidBodySystem fill( String filename, int numBodies ) {
+        RigidBodySystem system = createSystem();
+        system.name = filename + " factory";
+        ImageBlocker blocker = new ImageBlocker( filename, 0.05f );
+        system.SHinit( blocker.width, blocker.height );
+        Factory factory = new Factory( system );
+        factory.setImageBlocker( blocker );
+        factory.use = true;
+        factory.interval.setValue( 0.2 );
+        factory.reset();
+        setMode( system.collisionProcessor, SPATIAL_HASH );
+        while ( system.bodies.size() < numBodies ) {
+            factory.advanceTime( DT );
+            system.advanceTime( DT );
+        }
+        return system;
+    }
+
+    /**
+     * Advances the system with the spatial hash broad phase, so that every mode is 
+     * measured on the same state
+     * @param system
+     * @param steps
+     */
+    static void settle( RigidBodySystem system, int steps ) {
+        setMode( system.collisionProcessor, SPATIAL_HASH );
+        for ( int i = 0; i < steps; i++ ) {
+            system.advanceTime( DT );
+        }
+    }
+
+    /**
+     * Selects the broad phase of the collision processor
+     * @param cp
+     * @param mode
+     */
+    static void setMode( CollisionProcessor cp, String mode ) {
+        cp.SpatialHash.setValue( mode.equals( SPATIAL_HASH ) || mode.equals( SPATIAL_HASH_PARALLEL ) );
+        cp.useSweepAndPrune.setValue( mode.equals( SWEEP_AND_PRUNE ) || mode.equals( SWEEP_AND_PRUNE_PARALLEL ) );
+        cp.useMortonOrder.setValue( mode.equals( MORTON ) );
+        cp.useAABBTree.setValue( mode.equals( AABB_TREE ) || mode.equals( AABB_TREE_PAIR_CACHE ) );
+        cp.usePairCache.setValue( mode.equals( AABB_TREE_PAIR_CACHE ) );
+        cp.parallelBroadPhase.setValue( mode.endsWith( "Parallel" ) );
+        if ( ! mode.equals( NAIVE ) && ! cp.SpatialHash.getValue() && ! cp.useSweepAndPrune.getValue() 
+                && ! cp.useMortonOrder.getValue() && ! cp.useAABBTree.getValue() ) {
+            throw new IllegalArgumentException( "Unknown broad phase mode " + mode );
+        }
+    }
+
+    /**
+     * Positions, velocities, sleep flags and warm start values of the bodies of a system,
+     * so that every measurement steps the same scene from the same state
+     */
+    static class Snapshot {
+
+        private final RigidBodySystem system;
+        private final double[] state;
+        private final boolean[] sleep;
+        private final ArrayList<HashMap<Point2d, Double[]>> hashes = new ArrayList<HashMap<Point2d, Double[]>>();
+
+        /**
+         * Records the current state of the bodies of the system
+         * @param system
+         */
+        Snapshot( RigidBodySystem system ) {
+            this.system = system;
+            int n = system.bodies.size();
+            state = new double[7*n];
+            sleep = new boolean[n];
+            for ( int i = 0; i < n; i++ ) {
+                RigidBody b = system.bodies.get(i);
+                state[7*i] = b.x.x;
+                state[7*i+1] = b.x.y;
+                state[7*i+2] = b.theta;
+                state[7*i+3] = b.v.x;
+                state[7*i+4] = b.v.y;
+                state[7*i+5] = b.omega;
+                state[7*i+6] = b.travel;
+                sleep[i] = b.sleep;
+                hashes.add( new HashMap<Point2d, Double[]>( b.cHash ) );
+                hashes.add( new HashMap<Point2d, Double[]>( b.nHash ) );
+                hashes.add( new HashMap<Point2d, Double[]>( b.tHash ) );
+            }
+        }
+
+        /**
+         * Puts the bodies back in the recorded state, and resets the collision processor
+         * so that the bounding volumes and pairs it tracks between steps are built again
+         * from this state, as after loading a scene
+         */
+        void restore() {
+            for ( int i = 0; i < sleep.length; i++ ) {
+                RigidBody b = system.bodies.get(i);
+                b.x.set( state[7*i], state[7*i+1] );
+                b.theta = state[7*i+2];
+                b.v.set( state[7*i+3], state[7*i+4] );
+                b.omega = state[7*i+5];
+                b.travel = state[7*i+6];
+                b.sleep = sleep[i];
+                b.cHash = new HashMap<Point2d, Double[]>( hashes.get(3*i) );
+                b.nHash = new HashMap<Point2d, Double[]>( hashes.get(3*i+1) );
+                b.tHash = new HashMap<Point2d, Double[]>( hashes.get(3*i+2) );
+                b.force.set( 0, 0 );
+                b.torque = 0;
+                b.updateTransformations();
+            }
+            system.collisionProcessor.reset();
+        }
+
+    }
+
+}
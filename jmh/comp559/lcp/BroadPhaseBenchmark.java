@@ -0,0 +1,85 @@
+package comp559.lcp;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collision detection cost of each broad phase on the scenes of the datalcp folder.
+ * The scenes are settled for a few steps first so that bodies are in contact and some 
+ * are asleep, then each measurement times a few steps from that state, with the
+ * detection time of the steps reported as a secondary result (see DetectionTime).
+ * Must be run from the root of the project so that the scenes are found.
+ * @author kry
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = BenchmarkScenes.STEPS)
+@Measurement(iterations = 10, batchSize = BenchmarkScenes.STEPS)
+@Fork(2)
+public class BroadPhaseBenchmark {
+
+    @Param({ "datalcp/tower100.png", "datalcp/wallWideDenseHigh.png", "datalcp/tetrisTube.png", "datalcp/domino.txt", "datalcp/hithere.txt" })
+    public String scene;
+
+    @Param({ BenchmarkScenes.NAIVE, BenchmarkScenes.SPATIAL_HASH, BenchmarkScenes.SPATIAL_HASH_PARALLEL, 
+             BenchmarkScenes.SWEEP_AND_PRUNE, BenchmarkScenes.SWEEP_AND_PRUNE_PARALLEL, BenchmarkScenes.MORTON,
+             BenchmarkScenes.AABB_TREE, BenchmarkScenes.AABB_TREE_PAIR_CACHE })
+    public String mode;
+
+    /** steps taken before measuring */
+    @Param({ "100" })
+    public int settleSteps;
+
+    private RigidBodySystem system;
+
+    private BenchmarkScenes.Snapshot snapshot;
+
+    /**
+     * Loads and settles the scene, then selects the broad phase to measure and records
+     * the state from which the scene is stepped
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        system = BenchmarkScenes.load( scene );
+        BenchmarkScenes.settle( system, settleSteps );
+        BenchmarkScenes.setMode( system.collisionProcessor, mode );
+        snapshot = new BenchmarkScenes.Snapshot( system );
+    }
+
+    /**
+     * Puts the scene back in its state before the measured steps
+     */
+    @Setup(Level.Iteration)
+    public void restore() {
+        snapshot.restore();
+    }
+
+    /**
+     * Advances the scene by one step, so that the collision detection of every call sees
+     * the motion of a real step, and the incremental broad phases and caches do the work
+     * they would do in the application
+     * @param detection receives the collision detection time of the step
+     * @return number of contacts, returned so that the work is not optimized away
+     */
+    @Benchmark
+    public int broadPhase( DetectionTime detection ) {
+        system.advanceTime( BenchmarkScenes.DT );
+        detection.add( system );
+        return system.collisionProcessor.contacts.size();
+    }
+
+}
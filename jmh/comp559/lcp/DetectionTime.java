@@ -0,0 +1,37 @@
+package comp559.lcp;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary result of the broad phase benchmarks: the collision detection time of the
+ * measured steps, which excludes the contact solve and integration shared by all modes.
+ * @author kry
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class DetectionTime {
+
+    /** collision detection time, in milliseconds, summed over the steps of a measurement */
+    public double detectMillis;
+
+    /**
+     * Starts the sum of a new measurement
+     */
+    @Setup(Level.Iteration)
+    public void clear() {
+        detectMillis = 0;
+    }
+
+    /**
+     * Adds the detection time of the last step of the system
+     * @param system
+     */
+    void add( RigidBodySystem system ) {
+        detectMillis += system.collisionProcessor.collisionDetectTime * 1e3;
+    }
+
+}
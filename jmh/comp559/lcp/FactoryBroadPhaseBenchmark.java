@@ -0,0 +1,81 @@
+package comp559.lcp;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collision detection cost of each broad phase as the factory fills a scene with more
+ * and more bodies.  Each measurement times a few steps from the filled state, with the
+ * detection time of the steps reported as a secondary result (see DetectionTime).  Must be run from the root of the project so that the 
+ * scenes are found.
+ * @author kry
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = BenchmarkScenes.STEPS)
+@Measurement(iterations = 10, batchSize = BenchmarkScenes.STEPS)
+@Fork(2)
+public class FactoryBroadPhaseBenchmark {
+
+    @Param({ "datalcp/tetrisTube.png" })
+    public String scene;
+
+    /** number of bodies, pinned ones included, at which the factory is stopped */
+    @Param({ "50", "100", "200", "400" })
+    public int numBodies;
+
+    @Param({ BenchmarkScenes.NAIVE, BenchmarkScenes.SPATIAL_HASH, BenchmarkScenes.SPATIAL_HASH_PARALLEL, 
+             BenchmarkScenes.SWEEP_AND_PRUNE, BenchmarkScenes.SWEEP_AND_PRUNE_PARALLEL, BenchmarkScenes.MORTON,
+             BenchmarkScenes.AABB_TREE, BenchmarkScenes.AABB_TREE_PAIR_CACHE })
+    public String mode;
+
+    private RigidBodySystem system;
+
+    private BenchmarkScenes.Snapshot snapshot;
+
+    /**
+     * Fills the scene with the factory, then selects the broad phase to measure and records
+     * the state from which the scene is stepped
+     */
+    @Setup
+    public void setup() {
+        system = BenchmarkScenes.fill( scene, numBodies );
+        BenchmarkScenes.setMode( system.collisionProcessor, mode );
+        snapshot = new BenchmarkScenes.Snapshot( system );
+    }
+
+    /**
+     * Puts the scene back in its state before the measured steps
+     */
+    @Setup(Level.Iteration)
+    public void restore() {
+        snapshot.restore();
+    }
+
+    /**
+     * Advances the scene by one step, so that the collision detection of every call sees
+     * the motion of a real step, and the incremental broad phases and caches do the work
+     * they would do in the application
+     * @param detection receives the collision detection time of the step
+     * @return number of contacts, returned so that the work is not optimized away
+     */
+    @Benchmark
+    public int broadPhase( DetectionTime detection ) {
+        system.advanceTime( BenchmarkScenes.DT );
+        detection.add( system );
+        return system.collisionProcessor.contacts.size();
+    }
+
+}
@@ -0,0 +1,453 @@
+package comp559.lcp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dynamic bounding volume tree of axis aligned boxes for the broad phase.
+ * Each body has a leaf with a fattened box around its root bounding disc, and
+ * the leaf is only removed and reinserted when the disc leaves the fat box.
+ * Nodes are stored in flat arrays, and the tree is kept balanced with rotations
+ * on insertion and removal.  Overlapping pairs are either found by traversing the
+ * tree against itself, or maintained incrementally in a PairCache.
+ * @author kry
+ */
+public class AABBTree {
+
+    static final int NULL = -1;
+
+    /** node boxes */
+    private double[] minX, minY, maxX, maxY;
+
+    /** node parent, or the next free node for nodes in the free list */
+    private int[] parent;
+
+    private int[] child1, child2;
+
+    /** height of the node in the tree, zero for leaves, -1 for free nodes */
+    private int[] height;
+
+    /** index of the body at a leaf */
+    private int[] body;
+
+    private int root = NULL;
+
+    private int freeList = NULL;
+
+    /** leaf node of each body */
+    private int[] leafOf = new int[0];
+
+    /** number of bodies with leaves in the tree */
+    private int numBodies = 0;
+
+    /** reusable stack of node pairs for traversal */
+    private int[] stack = new int[64];
+
+    /** number of leaves reinserted by the last update */
+    int reinsertions = 0;
+
+    /** bodies inserted or reinserted by the last update */
+    private int[] moved = new int[16];
+
+    private int numMoved = 0;
+
+    /** true if the last update had to rebuild the tree from scratch */
+    private boolean rebuilt = false;
+
+    /** true if updatePairs was called after the last update */
+    private boolean pairsUpdated = false;
+
+    /** true if the pair cache missed the changes of an update, and must be rebuilt */
+    private boolean pairsStale = true;
+
+    /** amount by which leaf boxes are grown beyond the root bounding disc */
+    double margin = 2;
+
+    /**
+     * Creates an empty tree
+     */
+    public AABBTree() {
+        allocate( 16 );
+    }
+
+    private void allocate( int capacity ) {
+        int old = minX == null ? 0 : minX.length;
+        if ( old == 0 ) {
+            minX = new double[capacity]; minY = new double[capacity];
+            maxX = new double[capacity]; maxY = new double[capacity];
+            parent = new int[capacity]; child1 = new int[capacity]; child2 = new int[capacity];
+            height = new int[capacity]; body = new int[capacity];
+        } else {
+            minX = Arrays.copyOf( minX, capacity ); minY = Arrays.copyOf( minY, capacity );
+            maxX = Arrays.copyOf( maxX, capacity ); maxY = Arrays.copyOf( maxY, capacity );
+            parent = Arrays.copyOf( parent, capacity ); child1 = Arrays.copyOf( child1, capacity );
+            child2 = Arrays.copyOf( child2, capacity ); height = Arrays.copyOf( height, capacity );
+            body = Arrays.copyOf( body, capacity );
+        }
+        // chain the new nodes into the free list
+        for ( int i = old; i < capacity; i++ ) {
+            parent[i] = i + 1 < capacity ? i + 1 : freeList;
+            height[i] = -1;
+        }
+        freeList = old;
+    }
+
+    private int allocateNode() {
+        if ( freeList == NULL ) {
+            allocate( minX.length * 2 );
+        }
+        int node = freeList;
+        freeList = parent[node];
+        parent[node] = NULL;
+        child1[node] = NULL;
+        child2[node] = NULL;
+        height[node] = 0;
+        body[node] = NULL;
+        return node;
+    }
+
+    private void freeNode( int node ) {
+        parent[node] = freeList;
+        height[node] = -1;
+        freeList = node;
+    }
+
+    /**
+     * Removes all bodies from the tree
+     */
+    public void clear() {
+        minX = null;
+        freeList = NULL;
+        root = NULL;
+        numBodies = 0;
+        allocate( 16 );
+    }
+
+    /**
+     * Inserts new bodies, and reinserts the bodies whose root bounding disc has left its fat box.
+     * @param bodies
+     */
+    public void update( List<RigidBody> bodies ) {
+        int n = bodies.size();
+        rebuilt = n < numBodies;
+        if ( rebuilt ) clear();
+        pairsStale = rebuilt || ! pairsUpdated;
+        pairsUpdated = false;
+        if ( leafOf.length < n ) {
+            leafOf = Arrays.copyOf( leafOf, 2*n );
+            moved = new int[2*n];
+        }
+        reinsertions = 0;
+        numMoved = 0;
+        for ( int i = 0; i < n; i++ ) {
+            Disc d = bodies.get(i).root.boundingDisc;
+            d.updatecW();
+            double r = d.r + bodies.get(i).margin;
+            if ( i < numBodies ) {
+                int leaf = leafOf[i];
+                if ( d.cW.x - r >= minX[leaf] && d.cW.y - r >= minY[leaf] &&
+                     d.cW.x + r <= maxX[leaf] && d.cW.y + r <= maxY[leaf] ) continue;
+                removeLeaf( leaf );
+                reinsertions++;
+            } else {
+                leafOf[i] = allocateNode();
+                body[leafOf[i]] = i;
+            }
+            int leaf = leafOf[i];
+            double fat = r + margin;
+            minX[leaf] = d.cW.x - fat;
+            minY[leaf] = d.cW.y - fat;
+            maxX[leaf] = d.cW.x + fat;
+            maxY[leaf] = d.cW.y + fat;
+            insertLeaf( leaf );
+            moved[numMoved++] = i;
+        }
+        numBodies = n;
+    }
+
+    /**
+     * Updates the cache of pairs with overlapping fat boxes.  Cached pairs whose fat boxes 
+     * no longer overlap are removed, and only the bodies inserted or reinserted by the last
+     * update are queried for new pairs.  Must be called after update().  If the previous
+     * update was not followed by a call to this method, as when the cache was just turned
+     * on, the cache is cleared and all bodies are queried.
+     * @param cache
+     */
+    public void updatePairs( PairCache cache ) {
+        pairsUpdated = true;
+        if ( pairsStale ) {
+            cache.clear();
+            for ( int i = 0; i < numBodies; i++ ) {
+                moved[i] = i;
+            }
+            numMoved = numBodies;
+        }
+        cache.beginStep();
+        // iterate backwards as removal moves the last pair into the removed slot
+        for ( int k = cache.size() - 1; k >= 0; k-- ) {
+            long key = cache.get(k);
+            if ( ! overlap( leafOf[PairCache.first(key)], leafOf[PairCache.second(key)] ) ) {
+                cache.remove( key );
+            }
+        }
+        for ( int m = 0; m < numMoved; m++ ) {
+            int i = moved[m];
+            int leaf = leafOf[i];
+            int top = 0;
+            if ( root != NULL ) stack[top++] = root;
+            while ( top > 0 ) {
+                int node = stack[--top];
+                if ( node == leaf || ! overlap( node, leaf ) ) continue;
+                if ( height[node] == 0 ) {
+                    cache.add( PairCache.key( i, body[node] ) );
+                } else {
+                    if ( top + 2 > stack.length ) {
+                        stack = Arrays.copyOf( stack, stack.length * 2 );
+                    }
+                    stack[top++] = child1[node];
+                    stack[top++] = child2[node];
+                }
+            }
+        }
+        // pairs found again in an unchanged tree are not new, so they must not wake bodies
+        if ( pairsStale && ! rebuilt ) cache.beginStep();
+    }
+
+    private boolean overlap( int a, int b ) {
+        return minX[a] <= maxX[b] && minX[b] <= maxX[a] && minY[a] <= maxY[b] && minY[b] <= maxY[a];
+    }
+
+    /**
+     * Traverses the tree against itself to find the bodies with overlapping fat boxes
+     * and overlapping root bounding discs.  Pairs where neither body is awake are skipped.
+     * @param bodies
+     * @param out list to which the pairs are added
+     */
+    public void findPairs( List<RigidBody> bodies, PairList out ) {
+        if ( root == NULL ) return;
+        int top = 0;
+        stack[top++] = root;
+        stack[top++] = root;
+        while ( top > 0 ) {
+            int b = stack[--top];
+            int a = stack[--top];
+            if ( top + 8 > stack.length ) {
+                stack = Arrays.copyOf( stack, stack.length * 2 );
+            }
+            if ( a == b ) {
+                if ( height[a] == 0 ) continue;
+                int c1 = child1[a];
+                int c2 = child2[a];
+                stack[top++] = c1; stack[top++] = c1;
+                stack[top++] = c2; stack[top++] = c2;
+                stack[top++] = c1; stack[top++] = c2;
+                continue;
+            }
+            if ( ! overlap( a, b ) ) continue;
+            if ( height[a] == 0 && height[b] == 0 ) {
+                report( bodies, body[a], body[b], out );
+            } else if ( height[b] == 0 || ( height[a] > 0 && perimeter(a) > perimeter(b) ) ) {
+                stack[top++] = child1[a]; stack[top++] = b;
+                stack[top++] = child2[a]; stack[top++] = b;
+            } else {
+                stack[top++] = a; stack[top++] = child1[b];
+                stack[top++] = a; stack[top++] = child2[b];
+            }
+        }
+    }
+
+    private void report( List<RigidBody> bodies, int i, int j, PairList out ) {
+        RigidBody b1 = bodies.get(i);
+        RigidBody b2 = bodies.get(j);
+        if ( (b1.pinned || b1.sleep) && (b2.pinned || b2.sleep) ) return;
+        if ( ! b1.root.boundingDisc.intersects( b2.root.boundingDisc ) ) return;
+        out.add( i, j );
+    }
+
+    private double perimeter( int node ) {
+        return 2 * ( maxX[node] - minX[node] + maxY[node] - minY[node] );
+    }
+
+    private double unionPerimeter( int a, int b ) {
+        return 2 * ( Math.max( maxX[a], maxX[b] ) - Math.min( minX[a], minX[b] )
+                   + Math.max( maxY[a], maxY[b] ) - Math.min( minY[a], minY[b] ) );
+    }
+
+    /** Sets the box of node to the union of the boxes of a and b */
+    private void setUnion( int node, int a, int b ) {
+        minX[node] = Math.min( minX[a], minX[b] );
+        minY[node] = Math.min( minY[a], minY[b] );
+        maxX[node] = Math.max( maxX[a], maxX[b] );
+        maxY[node] = Math.max( maxY[a], maxY[b] );
+    }
+
+    /**
+     * Inserts a leaf, choosing the sibling with the surface area (perimeter) heuristic
+     * @param leaf
+     */
+    private void insertLeaf( int leaf ) {
+        if ( root == NULL ) {
+            root = leaf;
+            parent[root] = NULL;
+            return;
+        }
+        int index = root;
+        while ( height[index] > 0 ) {
+            int c1 = child1[index];
+            int c2 = child2[index];
+            double area = perimeter( index );
+            double combinedArea = unionPerimeter( index, leaf );
+            // cost of creating a new parent for this node and the new leaf
+            double cost = 2 * combinedArea;
+            // minimum cost of pushing the leaf further down the tree
+            double inheritanceCost = 2 * ( combinedArea - area );
+            double cost1 = unionPerimeter( leaf, c1 ) + inheritanceCost;
+            if ( height[c1] > 0 ) cost1 -= perimeter( c1 );
+            double cost2 = unionPerimeter( leaf, c2 ) + inheritanceCost;
+            if ( height[c2] > 0 ) cost2 -= perimeter( c2 );
+            if ( cost < cost1 && cost < cost2 ) break;
+            index = cost1 < cost2 ? c1 : c2;
+        }
+        int sibling = index;
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        setUnion( newParent, leaf, sibling );
+        height[newParent] = height[sibling] + 1;
+        if ( oldParent != NULL ) {
+            if ( child1[oldParent] == sibling ) {
+                child1[oldParent] = newParent;
+            } else {
+                child2[oldParent] = newParent;
+            }
+        } else {
+            root = newParent;
+        }
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+        refit( parent[leaf] );
+    }
+
+    /**
+     * Removes a leaf from the tree, the leaf node itself is kept for reinsertion
+     * @param leaf
+     */
+    private void removeLeaf( int leaf ) {
+        if ( leaf == root ) {
+            root = NULL;
+            return;
+        }
+        int p = parent[leaf];
+        int grandParent = parent[p];
+        int sibling = child1[p] == leaf ? child2[p] : child1[p];
+        if ( grandParent != NULL ) {
+            if ( child1[grandParent] == p ) {
+                child1[grandParent] = sibling;
+            } else {
+                child2[grandParent] = sibling;
+            }
+            parent[sibling] = grandParent;
+            freeNode( p );
+            refit( grandParent );
+        } else {
+            root = sibling;
+            parent[sibling] = NULL;
+            freeNode( p );
+        }
+    }
+
+    /**
+     * Walks up the tree from the given node, rebalancing and updating boxes and heights
+     * @param index
+     */
+    private void refit( int index ) {
+        while ( index != NULL ) {
+            index = balance( index );
+            int c1 = child1[index];
+            int c2 = child2[index];
+            height[index] = 1 + Math.max( height[c1], height[c2] );
+            setUnion( index, c1, c2 );
+            index = parent[index];
+        }
+    }
+
+    /**
+     * Performs a left or right rotation if node a is imbalanced
+     * @param a
+     * @return the index of the new root of the subtree
+     */
+    private int balance( int a ) {
+        if ( height[a] < 2 ) return a;
+        int b = child1[a];
+        int c = child2[a];
+        int balance = height[c] - height[b];
+        if ( balance > 1 ) {
+            // rotate c up
+            int f = child1[c];
+            int g = child2[c];
+            child1[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+            replaceChild( parent[c], a, c );
+            if ( height[f] > height[g] ) {
+                child2[c] = f;
+                child2[a] = g;
+                parent[g] = a;
+                setUnion( a, b, g );
+                setUnion( c, a, f );
+                height[a] = 1 + Math.max( height[b], height[g] );
+                height[c] = 1 + Math.max( height[a], height[f] );
+            } else {
+                child2[c] = g;
+                child2[a] = f;
+                parent[f] = a;
+                setUnion( a, b, f );
+                setUnion( c, a, g );
+                height[a] = 1 + Math.max( height[b], height[f] );
+                height[c] = 1 + Math.max( height[a], height[g] );
+            }
+            return c;
+        }
+        if ( balance < -1 ) {
+            // rotate b up
+            int d = child1[b];
+            int e = child2[b];
+            child1[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+            replaceChild( parent[b], a, b );
+            if ( height[d] > height[e] ) {
+                child2[b] = d;
+                child1[a] = e;
+                parent[e] = a;
+                setUnion( a, c, e );
+                setUnion( b, a, d );
+                height[a] = 1 + Math.max( height[c], height[e] );
+                height[b] = 1 + Math.max( height[a], height[d] );
+            } else {
+                child2[b] = e;
+                child1[a] = d;
+                parent[d] = a;
+                setUnion( a, c, d );
+                setUnion( b, a, e );
+                height[a] = 1 + Math.max( height[c], height[d] );
+                height[b] = 1 + Math.max( height[a], height[e] );
+            }
+            return b;
+        }
+        return a;
+    }
+
+    /** Replaces the child oldChild of node p with newChild, or sets the root if p is null */
+    private void replaceChild( int p, int oldChild, int newChild ) {
+        if ( p == NULL ) {
+            root = newChild;
+        } else if ( child1[p] == oldChild ) {
+            child1[p] = newChild;
+        } else {
+            child2[p] = newChild;
+        }
+    }
+
+}
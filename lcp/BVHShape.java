@@ -0,0 +1,305 @@
+package comp559.lcp;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Immutable part of a flattened bounding volume tree: the topology, body frame
+ * disc centers and radii, body frame oriented boxes, outward normal cones, and leaf blocks.  The blocks of all leaves are stored 
+ * contiguously in leaf order, with their body frame positions in flat arrays, so that
+ * a leaf is a range of these arrays.  It only depends on the blocks of a 
+ * body, so copies of a body (e.g., those made by the Factory) share the same shape,
+ * and only keep their own world centers in a FlatBVH.
+ * Nodes are numbered in depth first order from a BVNode tree, so node 0 is the root.
+ * @author kry
+ */
+public class BVHShape {
+
+    /** disc centers in body coordinates */
+    final double[] cBx, cBy;
+
+    /** disc radii */
+    final double[] r;
+
+    /** oriented box centers in body coordinates */
+    final double[] boxCx, boxCy;
+
+    /** unit first axis of each oriented box in body coordinates, the second axis is its perpendicular */
+    final double[] boxUx, boxUy;
+
+    /** half extents of each oriented box along its first and second axes */
+    final double[] boxHx, boxHy;
+
+    /** unit axis of the outward normal cone of the blocks of each node, in body coordinates */
+    final double[] coneX, coneY;
+
+    /** half angle of the normal cone of each node, NormalCone.FULL when it contains all directions */
+    final double[] coneHalf;
+
+    /** cosine and sine of the half angle of the normal cone of each node */
+    final double[] coneCos, coneSin;
+
+    /** unit axis of the outward normal cone of each block, in leaf order */
+    final double[] bConeX, bConeY;
+
+    /** cosine of the half angle of the normal cone of each block, -1 when it contains all directions */
+    final double[] bConeCos;
+
+    /** child node indices, -1 for leaves */
+    final int[] child1, child2;
+
+    /** parent node index, -1 for the root */
+    final int[] parent;
+
+    /** depth of each node, zero at the root */
+    final int[] depth;
+
+    /** first block of each leaf in the block arrays */
+    final int[] leafStart;
+
+    /** number of blocks at each leaf, zero for interior nodes */
+    final int[] leafCount;
+
+    /** blocks of all the leaves, in leaf order */
+    final Block[] blocks;
+
+    /** block positions in body coordinates, in leaf order */
+    final double[] bx, by;
+
+    /** pixel grid of the blocks, for the occupancy grid narrow phase */
+    final OccupancyGrid occupancy;
+
+    /** signed distance field of all the pixels of the body, for distance field contacts */
+    final DistanceField distanceField;
+
+    /** number of nodes */
+    final int numNodes;
+
+    /**
+     * Flattens the given tree, and builds the grids of the body
+     * @param root
+     * @param mask all the blocks of the body
+     */
+    public BVHShape( BVNode root, Collection<Block> mask ) {
+        numNodes = count( root );
+        cBx = new double[numNodes];
+        cBy = new double[numNodes];
+        r = new double[numNodes];
+        child1 = new int[numNodes];
+        child2 = new int[numNodes];
+        parent = new int[numNodes];
+        depth = new int[numNodes];
+        leafStart = new int[numNodes];
+        leafCount = new int[numNodes];
+        int numBlocks = countBlocks( root );
+        blocks = new Block[numBlocks];
+        bx = new double[numBlocks];
+        by = new double[numBlocks];
+        boxCx = new double[numNodes];
+        boxCy = new double[numNodes];
+        boxUx = new double[numNodes];
+        boxUy = new double[numNodes];
+        boxHx = new double[numNodes];
+        boxHy = new double[numNodes];
+        coneX = new double[numNodes];
+        coneY = new double[numNodes];
+        coneHalf = new double[numNodes];
+        coneCos = new double[numNodes];
+        coneSin = new double[numNodes];
+        bConeX = new double[numBlocks];
+        bConeY = new double[numBlocks];
+        bConeCos = new double[numBlocks];
+        parent[0] = -1;
+        flatten( root, 0 );
+        computeCones( mask );
+        occupancy = new OccupancyGrid( blocks );
+        distanceField = new DistanceField( mask );
+    }
+
+    private static int count( BVNode node ) {
+        return node.isLeaf() ? 1 : 1 + count( node.child1 ) + count( node.child2 );
+    }
+
+    private static int countBlocks( BVNode node ) {
+        return node.isLeaf() ? node.leafBlocks.size() : countBlocks( node.child1 ) + countBlocks( node.child2 );
+    }
+
+    /** next free position in the block arrays while flattening */
+    private int numFlattened = 0;
+
+    /**
+     * Stores the subtree of the given node starting at index n
+     * @param node
+     * @param n
+     * @return the next free index
+     */
+    private int flatten( BVNode node, int n ) {
+        int firstBlock = numFlattened;
+        int next = flattenNode( node, n );
+        fitBox( n, firstBlock, numFlattened );
+        return next;
+    }
+
+    /**
+     * Stores node n and its subtree, without the box of node n
+     * @param node
+     * @param n
+     * @return the next free index
+     */
+    private int flattenNode( BVNode node, int n ) {
+        cBx[n] = node.boundingDisc.cB.x;
+        cBy[n] = node.boundingDisc.cB.y;
+        r[n] = node.boundingDisc.r;
+        if ( node.isLeaf() ) {
+            child1[n] = -1;
+            child2[n] = -1;
+            leafStart[n] = numFlattened;
+            leafCount[n] = node.leafBlocks.size();
+            for ( Block b : node.leafBlocks ) {
+                blocks[numFlattened] = b;
+                bx[numFlattened] = b.pB.x;
+                by[numFlattened] = b.pB.y;
+                numFlattened++;
+            }
+            return n + 1;
+        }
+        child1[n] = n + 1;
+        parent[n + 1] = n;
+        depth[n + 1] = depth[n] + 1;
+        int next = flatten( node.child1, n + 1 );
+        child2[n] = next;
+        parent[next] = n;
+        depth[next] = depth[n] + 1;
+        return flatten( node.child2, next );
+    }
+
+    /**
+     * Computes the outward normal cones of the blocks from the neighbours of their pixels 
+     * that are not part of the body, and the cones of the nodes as the union of those of 
+     * their blocks.  The mask of the body is used rather than the white pixels of the image,
+     * as pixels of other bodies touching this one in the image are outside of it too.
+     * @param mask all the blocks of the body
+     */
+    private void computeCones( Collection<Block> mask ) {
+        HashSet<Long> pixels = new HashSet<Long>();
+        for ( Block b : mask ) {
+            pixels.add( pixelKey( b.i, b.j ) );
+        }
+        boolean[] outside = new boolean[8];
+        double[] cone = new double[2];
+        double[] blockAxis = new double[blocks.length];
+        double[] blockHalf = new double[blocks.length];
+        for ( int k = 0; k < blocks.length; k++ ) {
+            for ( int n = 0; n < 8; n++ ) {
+                outside[n] = ! pixels.contains( pixelKey( blocks[k].i + NormalCone.NEIGHBOUR_DI[n], blocks[k].j + NormalCone.NEIGHBOUR_DJ[n] ) );
+            }
+            NormalCone.ofNeighbours( outside, cone );
+            blockAxis[k] = cone[0];
+            blockHalf[k] = cone[1];
+            bConeX[k] = Math.cos( cone[0] );
+            bConeY[k] = Math.sin( cone[0] );
+            bConeCos[k] = cone[1] >= NormalCone.FULL ? -1 : Math.cos( cone[1] );
+        }
+        // children have higher indices than their parents
+        double[] axis = new double[numNodes];
+        for ( int n = numNodes - 1; n >= 0; n-- ) {
+            if ( isLeaf( n ) ) {
+                int start = leafStart[n];
+                axis[n] = blockAxis[start];
+                coneHalf[n] = blockHalf[start];
+                for ( int k = start + 1; k < start + leafCount[n]; k++ ) {
+                    NormalCone.union( axis[n], coneHalf[n], blockAxis[k], blockHalf[k], cone );
+                    axis[n] = cone[0];
+                    coneHalf[n] = cone[1];
+                }
+            } else {
+                NormalCone.union( axis[child1[n]], coneHalf[child1[n]], axis[child2[n]], coneHalf[child2[n]], cone );
+                axis[n] = cone[0];
+                coneHalf[n] = cone[1];
+            }
+            coneX[n] = Math.cos( axis[n] );
+            coneY[n] = Math.sin( axis[n] );
+            coneCos[n] = Math.cos( coneHalf[n] );
+            coneSin[n] = Math.sin( coneHalf[n] );
+        }
+    }
+
+    private static long pixelKey( int i, int j ) {
+        return ((long) i << 32) | ( j & 0xffffffffL );
+    }
+
+    /**
+     * Fits the oriented box of node n around the discs of radius Block.radius of its 
+     * blocks, which are contiguous in the block arrays.  The box is aligned with the 
+     * principal axes of the block centers, or with the body axes when that gives a 
+     * smaller box, as the principal axes of pixel shapes are not always the best fit.
+     * @param n
+     * @param start first block of the node
+     * @param end end of the blocks of the node
+     */
+    private void fitBox( int n, int start, int end ) {
+        double mx = 0, my = 0;
+        for ( int i = start; i < end; i++ ) {
+            mx += bx[i];
+            my += by[i];
+        }
+        mx /= end - start;
+        my /= end - start;
+        double cxx = 0, cxy = 0, cyy = 0;
+        for ( int i = start; i < end; i++ ) {
+            double dx = bx[i] - mx;
+            double dy = by[i] - my;
+            cxx += dx * dx;
+            cxy += dx * dy;
+            cyy += dy * dy;
+        }
+        double theta = 0.5 * Math.atan2( 2 * cxy, cxx - cyy );
+        setBox( n, start, end, Math.cos( theta ), Math.sin( theta ) );
+        double area = boxHx[n] * boxHy[n];
+        double ux = boxUx[n], uy = boxUy[n];
+        double cx = boxCx[n], cy = boxCy[n], hx = boxHx[n], hy = boxHy[n];
+        setBox( n, start, end, 1, 0 );
+        if ( boxHx[n] * boxHy[n] > area ) {
+            boxUx[n] = ux; boxUy[n] = uy;
+            boxCx[n] = cx; boxCy[n] = cy;
+            boxHx[n] = hx; boxHy[n] = hy;
+        }
+    }
+
+    /**
+     * Sets the box of node n with the given first axis to bound the discs of its blocks
+     * @param n
+     * @param start
+     * @param end
+     * @param ux
+     * @param uy
+     */
+    private void setBox( int n, int start, int end, double ux, double uy ) {
+        double min0 = Double.MAX_VALUE, max0 = -Double.MAX_VALUE;
+        double min1 = Double.MAX_VALUE, max1 = -Double.MAX_VALUE;
+        for ( int i = start; i < end; i++ ) {
+            double p0 = ux * bx[i] + uy * by[i];
+            double p1 = -uy * bx[i] + ux * by[i];
+            min0 = Math.min( min0, p0 );
+            max0 = Math.max( max0, p0 );
+            min1 = Math.min( min1, p1 );
+            max1 = Math.max( max1, p1 );
+        }
+        double c0 = ( min0 + max0 ) / 2;
+        double c1 = ( min1 + max1 ) / 2;
+        boxUx[n] = ux;
+        boxUy[n] = uy;
+        boxCx[n] = ux * c0 - uy * c1;
+        boxCy[n] = uy * c0 + ux * c1;
+        boxHx[n] = ( max0 - min0 ) / 2 + Block.radius;
+        boxHy[n] = ( max1 - min1 ) / 2 + Block.radius;
+    }
+
+    /**
+     * @param n
+     * @return true if node n is a leaf
+     */
+    public boolean isLeaf( int n ) {
+        return child1[n] < 0;
+    }
+
+}
@@ -2,21 +2,24 @@ package comp559.lcp;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.jogamp.opengl.GLAutoDrawable;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 
 /**
  * Bounding volume node used to build bounding volume trees.
  * The tree is constructed such that every interior node has two children.
- * Either there are two children, or this is a leaf node and the leafBlock 
- * member stores the block at this leaf.
+ * Either there are two children, or this is a leaf node and the leafBlocks 
+ * member stores the blocks at this leaf, at most maxLeafBlocks of them.
  * (Note that it is actually a bounding area, but it is probably easier to 
  * stick with the 3D terminology)
+ * The narrow phase traverses the flattened copy of the tree in FlatBVH.
  * @author kry
  */
 public class BVNode {
 
+    /** Largest number of blocks in a leaf, used when building new trees */
+    static int maxLeafBlocks = 4;
+
     /** Bounding disc for all leaves in this subtree */
     Disc boundingDisc;
 
@@ -24,11 +27,8 @@ public class BVNode {
     
     BVNode child2;
     
-    /** The block at this node if it is a leaf, null otherwise */
-    Block leafBlock;
-    
-    /** The visitID keeps track of when this node was last visited */
-    int visitID;
+    /** The blocks at this node if it is a leaf, null otherwise */
+    ArrayList<Block> leafBlocks;
     
     /**
      * Create a bounding volume node from a list of blocks.  An axis aligned
@@ -40,8 +40,8 @@ public class BVNode {
     public BVNode( List<Block> blocks, RigidBody body ) {
         // create our own bounding disc
         boundingDisc = new Disc(blocks, body);
-        if ( blocks.size() == 1 ) {
-            leafBlock = blocks.get(0);
+        if ( blocks.size() <= maxLeafBlocks ) {
+            leafBlocks = new ArrayList<Block>( blocks );
         } else {        
             // find the distribution
             Block b0 = blocks.get(0);
@@ -84,36 +84,22 @@ public class BVNode {
     }
 
     /**
-     * @return true if this node is a leaf
-     */    
-    public boolean isLeaf() {
-        return leafBlock != null;
-    }
-    
-    /**
-     * Draws the bounding volume spheres
-     * @param drawable
+     * Creates a copy of the root of the tree of another body made of the same blocks, 
+     * for the broad phase.  Only the bounding disc is copied, without the children, as the
+     * narrow phase uses the shared BVHShape through the FlatBVH of the body.
+     * @param root
+     * @param body
      */
-    public void display( GLAutoDrawable drawable ) {
-        boundingDisc.display(drawable);
-        if ( child1 != null ) child1.display(drawable);
-        if ( child2 != null ) child2.display(drawable);
+    public BVNode( BVNode root, RigidBody body ) {
+        boundingDisc = new Disc( root.boundingDisc, body );
+        if ( root.isLeaf() ) leafBlocks = root.leafBlocks;
     }
-    
+
     /**
-     * Draws the bounding volume spheres at the boundary where the sphere was visited by its children were not.
-     * @param drawable
-     * @param visit
-     */
-    public void displayVisitBoundary( GLAutoDrawable drawable, int visit ) {
-        if ( isLeaf() ) {
-            boundingDisc.display(drawable);    
-        } else if ( child1.visitID != visit ) { // both children are visited, or not, never one or the other
-            boundingDisc.display(drawable);
-        } else {
-            child1.displayVisitBoundary(drawable, visit);
-            child2.displayVisitBoundary(drawable, visit);
-        }
+     * @return true if this node is a leaf
+     */    
+    public boolean isLeaf() {
+        return leafBlocks != null;
     }
     
 }
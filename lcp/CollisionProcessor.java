@@ -1,5 +1,6 @@
 package comp559.lcp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.awt.image.BufferedImage;
@@ -7,14 +8,15 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.Math;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.border.TitledBorder;
 import javax.vecmath.Point2d;
-import javax.vecmath.Vector2d;
 
 import mintools.parameters.BooleanParameter;
 import mintools.parameters.DoubleParameter;
@@ -39,11 +41,13 @@ public class CollisionProcessor {
     /**
      * Creates this collision processor with the provided set of bodies
      * @param bodies
+     * @param grid uniform grid used by the spatial hash broad phase for bodies that are not pinned
+     * @param staticGrid uniform grid holding the pinned bodies
      */
-//    public CollisionProcessor( List<RigidBody> bodies, double imageWidth ) {
-	public CollisionProcessor( List<RigidBody> bodies, HashMap<Integer,ArrayList<RigidBody>> SpHash) {
+	public CollisionProcessor( List<RigidBody> bodies, UniformGrid grid, UniformGrid staticGrid ) {
         this.bodies = bodies;
-        this.SpHash = SpHash;
+        this.grid = grid;
+        this.staticGrid = staticGrid;
     }
     
     /** keeps track of the time used for collision detection on the last call */
@@ -52,19 +56,103 @@ public class CollisionProcessor {
     /** keeps track of the time used to solve the LCP based velocity update on the last call */
     double collisionSolveTime = 0;
     
-    public HashMap <Integer, ArrayList<RigidBody>> SpHash = new HashMap<Integer, ArrayList<RigidBody>>();
-//    public double convFactor = 1/100;
-//    public double width = convFactor;
+    /** grid for the spatial hash broad phase, rebuilt on every call to broadPhase */
+    UniformGrid grid;
+    
+    /** grid with the pinned bodies, only built when a scene is loaded */
+    UniformGrid staticGrid;
+    
+    /** grid with the sleeping bodies, only rebuilt when bodies fall asleep, wake up, or are moved */
+    private UniformGrid sleepGrid = new UniformGrid();
+    
+    /** whether each body was asleep, and so in the sleeping grid, when that grid was last built */
+    private boolean[] inSleepGrid = new boolean[0];
+    
+    /** position and angle of each sleeping body when the sleeping grid was last built */
+    private double[] sleepPose = new double[0];
+    
+    /** true when the sleeping grid must be rebuilt on the next step, as after a reset */
+    private boolean sleepGridStale = true;
+    
+    /** range of cells overlapped by the box around the root bounding disc of each body, filled by buildGrid() */
+    private int[] cellX0 = new int[0], cellY0 = new int[0], cellX1 = new int[0], cellY1 = new int[0];
+    
+    /** persistent sorted endpoints for the sweep and prune broad phase */
+    SweepAndPrune sweepAndPrune = new SweepAndPrune();
+    
+    /** dynamic tree of fat boxes for the AABB tree broad phase */
+    AABBTree aabbTree = new AABBTree();
+    
+    /** overlapping pairs of the AABB tree, kept between steps */
+    PairCache pairCache = new PairCache();
+    
+    /** bodies sorted in Morton order for the broad phase */
+    MortonSort mortonSort = new MortonSort();
+    
+    /** candidate pairs found by the broad phase on the current step */
+    PairList candidates = new PairList();
+    
+    /** pair buffers of the tasks of the parallel broad phase */
+    private PairList[] taskPairs = new PairList[0];
+    
+    /** narrow phase of the serial path, which adds its contacts directly to the contact list */
+    NarrowPhase serialNarrowPhase = new NarrowPhase( this, contacts );
+    
+    /** narrow phase workers of the tasks of the parallel narrow phase, each with its own contact buffer */
+    private NarrowPhase[] taskNarrowPhases = new NarrowPhase[0];
+    
+    /** pair states of the candidate pairs, looked up before the parallel narrow phase */
+    private PairState[] candidateStates = new PairState[0];
+    
+    /** visit ID at which each body was last found in a candidate pair of the parallel narrow phase */
+    private int[] bodyVisitID = new int[0];
+    
+    /** traversal fronts of the body pairs, kept between steps */
+    PairStateCache pairStates = new PairStateCache();
+    
+    /** 
+     * Set by the caller to false for all but the first substep of a time step, so that 
+     * the contacts can be reused across substeps, see reuseContacts
+     */
+    boolean firstSubstep = true;
+    
+    /** number of bodies at the last collision detection */
+    private int detectedBodies = -1;
+    
+    /** number of bounding volume node pair tests done by the narrow phase on the last step */
+    int nodeTests = 0;
+    
+    /** number of body pairs whose tree traversal was skipped by conservative advancement on the last step */
+    int skippedPairs = 0;
+    
+    /** number of body pairs rejected by the separating axis test of their hulls on the last step */
+    int hullRejects = 0;
+    
     /**
      * Processes all collisions 
      * @param dt time step
      */
     public void processCollisions( double dt ) {
-        contacts.clear();
-        Contact.nextContactIndex = 0;
-        
         long now = System.nanoTime();
-        broadPhase();
+        // penalty forces are applied as the contacts are found, so only the LCP solve can reuse them
+        boolean reuse = reuseContacts.getValue() && doLCP.getValue();
+        if ( reuse && ! firstSubstep && canReuseContacts() ) {
+        	for ( Contact c : contacts ) {
+        		c.update();
+        	}
+        } else {
+	        contacts.clear();
+	        // speculative contacts need the forces of the step, so they are only used with the LCP solve
+	        boolean speculative = useSpeculativeContacts.getValue() && doLCP.getValue();
+	        for ( RigidBody b : bodies ) {
+	        	b.margin = speculative ? b.motionBound( dt ) : 0;
+	        }
+	        broadPhase();
+	        for ( RigidBody b : bodies ) {
+	        	b.travelAtDetection = b.travel;
+	        }
+	        detectedBodies = bodies.size();
+        }
         collisionDetectTime = ( System.nanoTime() - now ) * 1e-9;
                 
         if ( contacts.size() > 0  && doLCP.getValue() ) {
@@ -95,14 +183,20 @@ public class CollisionProcessor {
             	if(ifBaumgarte.getValue()) {
             		baum = BaumgarteK.getValue();
             	}
+            	// speculative contacts do not bounce as they are not touching yet
+            	double e = c.separation > 0 ? 0 : bounce;
             	
             	for (int j=0;j<u.length;j++) {
-            		b[2*i]+=c.J1[j]*(bounce*u[j]+u[j]+dt*f[j]*m[j]+1e-7*baum*interpenetration);
+            		b[2*i]+=c.J1[j]*(e*u[j]+u[j]+dt*f[j]*m[j]+1e-7*baum*interpenetration);
             		b[2*i+1]+=c.J2[j]*(u[j]+dt*f[j]*m[j]);
 //            		Dii = Ji0^2*mAinv + ji1^2*mAinv + ji2^2*jAinv +...
             		Dii[2*i]+=c.J1[j]*c.J1[j]*m[j];
             		Dii[2*i+1]+=c.J2[j]*c.J2[j]*m[j];
             	}
+            	if ( c.separation > 0 ) {
+            		// a speculative contact lets the bodies approach by the gap over the step
+            		b[2*i] += c.separation / dt;
+            	}
             	Point2d pB1 = new Point2d();
     			Point2d pB2 = new Point2d();
     			b1.transformW2B.transform(c.contactW, pB1);
@@ -193,114 +287,414 @@ public class CollisionProcessor {
 	        	bd.v.y += deltaV[3*i+1];
 	        	bd.omega += deltaV[3*i+2];
 	        }
-//	        SpHash = new HashMap<>();
             collisionSolveTime = (System.nanoTime() - now) * 1e-9;
         }
     }
     
     /**
-     * Checks for collisions between bodies.  Note that you can optionaly implement some broad
-     * phase test such as spatial hashing to reduce the n squared body-body tests.
-     * Currently this does the naive n squared collision check.
+     * @return true if the contacts of the last detection can still be used, that is, the
+     * bodies are the same and none has moved by more than the reuse margin since
+     */
+    private boolean canReuseContacts() {
+    	if ( bodies.size() != detectedBodies ) return false;
+    	double margin = reuseMargin.getValue();
+    	for ( RigidBody b : bodies ) {
+    		if ( b.travel - b.travelAtDetection > margin ) return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Checks for collisions between bodies.  The spatial hash grid, sweep and prune, or
+     * AABB tree broad phase can be selected to reduce the n squared body-body tests, 
+     * otherwise this does the naive n squared collision check.  Package visible so that
+     * it can be benchmarked on its own (see the jmh folder).
      */
-    private void broadPhase() {
-        // Naive n squared body test.. might not be that bad for small number of bodies 
+    void broadPhase() {
         visitID++;
+        serialNarrowPhase.nodeTests = 0;
+        serialNarrowPhase.skippedPairs = 0;
+        serialNarrowPhase.hullRejects = 0;
         //double kineticEnergyThres = 1e-1;
-        if(!SpatialHash.getValue()) {
+        if ( SpatialHash.getValue() ) {
+        	buildGrid();
+        	candidates.clear();
+        	if ( parallelBroadPhase.getValue() ) {
+        		parallelPairs( true );
+        	} else {
+        		for ( RigidBody b1 : bodies ) {
+        			if ( b1.pinned || b1.sleep ) continue;
+        			queryGrid( staticGrid, b1, candidates );
+        			queryGrid( sleepGrid, b1, candidates );
+        			queryGrid( grid, b1, candidates );
+        		}
+        	}
+        	processCandidates();
+        } else if ( useSweepAndPrune.getValue() ) {
+        	sweepAndPrune.update( bodies );
+        	candidates.clear();
+        	if ( parallelBroadPhase.getValue() ) {
+        		parallelPairs( false );
+        	} else {
+        		sweepAndPrune.findPairs( bodies, candidates );
+        	}
+        	processCandidates();
+        } else if ( useMortonOrder.getValue() ) {
+        	mortonSort.update( bodies );
+        	candidates.clear();
+        	mortonSort.findPairs( bodies, candidates );
+        	// keep the Morton order of the pairs so the narrow phase visits nearby bodies in turn
+        	narrowPhaseCandidates();
+        } else if ( useAABBTree.getValue() ) {
+        	aabbTree.margin = aabbTreeMargin.getValue();
+        	aabbTree.update( bodies );
+        	if ( usePairCache.getValue() ) {
+        		aabbTree.updatePairs( pairCache );
+        		processPairEvents();
+        		for ( int k = 0; k < pairCache.size(); k++ ) {
+        			long key = pairCache.get(k);
+        			RigidBody b1 = bodies.get( PairCache.first(key) );
+        			RigidBody b2 = bodies.get( PairCache.second(key) );
+        			if ( (b1.pinned || b1.sleep) && (b2.pinned || b2.sleep) ) continue;
+        			if ( ! b1.root.boundingDisc.intersects( b2.root.boundingDisc ) ) continue;
+        			serialNarrowPhase.narrowPhase( b1, b2, null );
+        		}
+        	} else {
+        		candidates.clear();
+        		aabbTree.findPairs( bodies, candidates );
+        		processCandidates();
+        	}
+        } else {
+        	// Naive n squared body test.. might not be that bad for small number of bodies 
         	for ( RigidBody b1 : bodies ) {
         		for ( RigidBody b2 : bodies ) { // not so inefficient given the continue on the next line
         			if ( b1.index >= b2.index ) continue;
         			if ((b1.pinned || b1.sleep) && (b2.pinned || b2.sleep)) continue;        
-        			narrowPhase( b1, b2 );  
+        			serialNarrowPhase.narrowPhase( b1, b2, null );  
         			
         			
         		}
         	}
         }
-        else {
-    		for (RigidBody b1 : bodies) {
-    			if(b1.bucketKey.isEmpty()) continue;
-    			for(int x:b1.bucketKey) {
-	    			if(SpHash.containsKey(x)) {
-		    			for (RigidBody b2 : SpHash.get(x)) {
-		    				if(b1.index >= b2.index) continue;
-		    				if ((b1.pinned || b1.sleep) && (b2.pinned || b2.sleep)) continue; 
-		    				narrowPhase(b1,b2);
-		    			}
-	    			}
+        // forget the fronts of the pairs that were not tested this step
+        pairStates.removeUnused( visitID );
+        nodeTests = serialNarrowPhase.nodeTests;
+        skippedPairs = serialNarrowPhase.skippedPairs;
+        hullRejects = serialNarrowPhase.hullRejects;
+        // the position of a contact in the list determines its rows in the jacobian
+        for ( int k = 0; k < contacts.size(); k++ ) {
+        	contacts.get(k).index = k;
+        }
+    }
+    
+    /**
+     * Handles the pair begin and end transitions of the pair cache.  A body that is asleep
+     * is woken up when a new body comes near, and the warm start values stored between two
+     * bodies are forgotten once the pair ends.
+     */
+    private void processPairEvents() {
+    	for ( int k = 0; k < pairCache.numBegun; k++ ) {
+    		long key = pairCache.begun[k];
+    		RigidBody b1 = bodies.get( PairCache.first(key) );
+    		RigidBody b2 = bodies.get( PairCache.second(key) );
+    		if ( b1.sleep && !b2.pinned ) b1.sleep = false;
+    		if ( b2.sleep && !b1.pinned ) b2.sleep = false;
+    	}
+    	for ( int k = 0; k < pairCache.numEnded; k++ ) {
+    		long key = pairCache.ended[k];
+    		RigidBody b1 = bodies.get( PairCache.first(key) );
+    		RigidBody b2 = bodies.get( PairCache.second(key) );
+    		b1.removeContactHashes( b2 );
+    		b2.removeContactHashes( b1 );
+    	}
+    }
+    
+    /**
+     * Fills the dynamic grid for this step.  Every awake body that is not pinned is inserted 
+     * in each cell overlapped by the box around its root bounding disc.  Sleeping bodies do
+     * not move, so they are kept in the sleeping grid, which is only rebuilt when a body 
+     * falls asleep, wakes up, or is moved while asleep.  Pinned bodies are in the static 
+     * grid, but their cell ranges are also computed here.
+     */
+    private void buildGrid() {
+    	int n = bodies.size();
+    	boolean rebuildSleep = sleepGridStale || inSleepGrid.length != n || ! sleepGrid.sameCells( grid );
+    	for ( int k = 0; k < n && ! rebuildSleep; k++ ) {
+    		RigidBody b = bodies.get( k );
+    		int i = b.index;
+    		boolean asleep = b.sleep && ! b.pinned;
+    		if ( asleep != inSleepGrid[i] ) rebuildSleep = true;
+    		else if ( asleep && ( b.x.x != sleepPose[3*i] || b.x.y != sleepPose[3*i+1] || b.theta != sleepPose[3*i+2] ) ) rebuildSleep = true;
+    	}
+    	if ( cellX0.length < n ) {
+    		cellX0 = new int[n];
+    		cellY0 = new int[n];
+    		cellX1 = new int[n];
+    		cellY1 = new int[n];
+    	}
+    	if ( rebuildSleep ) {
+    		if ( inSleepGrid.length != n ) {
+    			inSleepGrid = new boolean[n];
+    			sleepPose = new double[3*n];
+    		}
+    		if ( ! sleepGrid.sameCells( grid ) ) sleepGrid.setup( grid );
+    		sleepGrid.clear();
+    		sleepGridStale = false;
+    	}
+    	grid.clear();
+    	for ( RigidBody b : bodies ) {
+    		int i = b.index;
+    		boolean asleep = b.sleep && ! b.pinned;
+    		// sleeping bodies keep their cell ranges and cells until the sleeping grid is rebuilt
+    		if ( asleep && ! rebuildSleep ) continue;
+    		Disc d = b.root.boundingDisc;
+    		d.updatecW();
+    		double r = d.r + b.margin;
+    		cellX0[i] = grid.cellX( d.cW.x - r );
+    		cellX1[i] = grid.cellX( d.cW.x + r );
+    		cellY0[i] = grid.cellY( d.cW.y - r );
+    		cellY1[i] = grid.cellY( d.cW.y + r );
+    		if ( rebuildSleep ) {
+    			inSleepGrid[i] = asleep;
+    			sleepPose[3*i] = b.x.x;
+    			sleepPose[3*i+1] = b.x.y;
+    			sleepPose[3*i+2] = b.theta;
+    		}
+    		if ( b.pinned ) continue;
+    		UniformGrid g = asleep ? sleepGrid : grid;
+    		g.beginBody();
+    		for ( int y = cellY0[i]; y <= cellY1[i]; y++ ) {
+    			for ( int x = cellX0[i]; x <= cellX1[i]; x++ ) {
+    				g.insert( g.cellIndex( x, y ), i );
     			}
-    			b1.bucketKey.clear();
     		}
-    	}   
+    	}
+    	grid.build();
+    	if ( rebuildSleep ) sleepGrid.build();
     }
     
     /**
-     * Checks for collision between boundary blocks on two rigid bodies.
-     * TODO: This needs to be improved as the n-squared block test is too slow!
-     * @param body1
-     * @param body2
+     * Finds the bodies sharing a cell of the given grid with the awake body b1.  Two bodies 
+     * can share several cells, so a pair is only reported from the first cell of the overlap
+     * of their cell ranges.  Pairs of two awake bodies are reported by the body with the 
+     * lower index, while pairs with a pinned or sleeping body are always reported by 
+     * the awake body.
+     * @param g
+     * @param b1
+     * @param out list to which the pairs are added
      */
-    private void narrowPhase( RigidBody body1, RigidBody body2 ) {
-    	double kineticEnergyThres = 1e-4;
-        if (body1.getKineticEnergy()*body1.minv >= kineticEnergyThres || body2.getKineticEnergy()*body2.minv >= kineticEnergyThres) {
-
-        	if ( ! useBVTree.getValue() ) {
-                for ( Block b1 : body1.blocks ) {
-                    for ( Block b2 : body2.blocks ) {
-                        processCollision( body1, b1, body2, b2 );
-                    }
-                }
-            } else {
-                // object 2
-            	//TODO: implement code to use hierarchical collision detection on body pairs
-            	detection (body1,body2,body1.root,body2.root);
-            }
-        	
-        	body1.sleep = false;
-    		body2.sleep = false;
-        	} else if (body1.getKineticEnergy()*body1.minv < kineticEnergyThres) {
-        		body1.sleep = true;
-        	} else if (body2.getKineticEnergy()*body2.minv < kineticEnergyThres) {
-        		body2.sleep = true;
-        }  
-        
-    } 
-    //traverse recursively
-    public void detection(RigidBody body1, RigidBody body2, BVNode bn1, BVNode bn2) {
-    	Disc first = bn1.boundingDisc;    	
-    	Disc second = bn2.boundingDisc;
-    	if (bn1.visitID!=visitID) {
-    		bn1.visitID = visitID;
-    		bn1.boundingDisc.updatecW();
+    private void queryGrid( UniformGrid g, RigidBody b1, PairList out ) {
+    	int i = b1.index;
+    	for ( int y = cellY0[i]; y <= cellY1[i]; y++ ) {
+    		for ( int x = cellX0[i]; x <= cellX1[i]; x++ ) {
+    			int cell = g.cellIndex( x, y );
+    			int end = g.cellStart[cell] + g.cellCount[cell];
+    			for ( int k = g.cellStart[cell]; k < end; k++ ) {
+    				int j = g.cellBodies[k];
+    				if ( j == i ) continue;
+    				if ( x != Math.max( cellX0[i], cellX0[j] ) || y != Math.max( cellY0[i], cellY0[j] ) ) continue;
+    				RigidBody b2 = bodies.get( j );
+    				if ( b2.pinned || b2.sleep || i < j ) {
+    					out.add( i, j );
+    				}
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Sorts the candidate pairs of the broad phase into the canonical order and calls the
+     * narrow phase on each of them
+     */
+    private void processCandidates() {
+    	candidates.sort();
+    	narrowPhaseCandidates();
+    }
+    
+    /**
+     * Calls the narrow phase on the candidate pairs, in their order.  The parallel narrow
+     * phase is only used with the LCP solve, as the penalty method applies forces to the
+     * bodies as the contacts are created.
+     */
+    private void narrowPhaseCandidates() {
+    	if ( parallelNarrowPhase.getValue() && doLCP.getValue() ) {
+    		parallelNarrowPhase();
+    		return;
+    	}
+    	for ( int k = 0; k < candidates.size; k++ ) {
+    		long key = candidates.keys[k];
+    		serialNarrowPhase.narrowPhase( bodies.get( PairCache.first(key) ), bodies.get( PairCache.second(key) ), null );
+    	}
+    }
+    
+    /**
+     * Runs the narrow phase on the candidate pairs with a ForkJoinPool.  The candidate list
+     * is split into ranges, and each task runs its own narrow phase worker, with its own
+     * scratch variables and contact buffer.  The parts that are not safe to share are done
+     * before and after the tasks: the pair states are looked up first, as the pair state
+     * cache is not thread safe, and the bounding volume trees of all the bodies of the pairs
+     * are brought to world coordinates so the tasks only read them.  The sleep flags set by 
+     * the workers are recorded, and the buffers and sleep flags are merged in the order of 
+     * the ranges, so the contacts, their indices, and the sleep flags are the same as with 
+     * the serial narrow phase.
+     */
+    private void parallelNarrowPhase() {
+    	ForkJoinPool pool = ForkJoinPool.commonPool();
+    	int numTasks = 4 * pool.getParallelism();
+    	int n = candidates.size;
+    	if ( taskNarrowPhases.length != numTasks ) {
+    		taskNarrowPhases = new NarrowPhase[numTasks];
+    		for ( int t = 0; t < numTasks; t++ ) {
+    			taskNarrowPhases[t] = new NarrowPhase( this, new ArrayList<Contact>() );
+    			taskNarrowPhases[t].deferBodyChanges = true;
+    		}
+    	}
+    	if ( candidateStates.length < n ) {
+    		candidateStates = new PairState[ Math.max( n, 2 * candidateStates.length ) ];
+    	}
+    	if ( bodyVisitID.length < bodies.size() ) {
+    		bodyVisitID = new int[bodies.size()];
     	}
-    	if (bn2.visitID != visitID){
-    		bn2.visitID = visitID;
-    		bn2.boundingDisc.updatecW();
+    	boolean useStates = useBVTree.getValue() && ! useDistanceField.getValue() && ! useOccupancyGrid.getValue() 
+    			&& ( useBVTTFront.getValue() || useConservativeAdvancement.getValue() );
+    	for ( int k = 0; k < n; k++ ) {
+    		long key = candidates.keys[k];
+    		candidateStates[k] = useStates ? pairStates.get( key ) : null;
+    		bodyVisitID[PairCache.first(key)] = visitID;
+    		bodyVisitID[PairCache.second(key)] = visitID;
     	}
-    	if (first.intersects(second)) {
-    		//If nodes are leaves we can process the collisions directly.
-    		BVNode [] lst = {bn1.child1,bn1.child2,bn2.child1,bn2.child2};
-    		//we let the user choose to perform narrow check or not
-    		if(bn1.isLeaf()&&bn2.isLeaf()) {
-    				processCollision(body1,bn1.leafBlock,body2,bn2.leafBlock); 
+    	ArrayList<NarrowPhaseTask> tasks = new ArrayList<NarrowPhaseTask>();
+    	int numBodies = bodies.size();
+    	for ( int t = 0; t < numTasks; t++ ) {
+    		tasks.add( new NarrowPhaseTask( t, (int) ((long) numBodies * t / numTasks), (int) ((long) numBodies * (t+1) / numTasks), true ) );
+    	}
+    	invokeTasks( pool, tasks );
+    	tasks.clear();
+    	for ( int t = 0; t < numTasks; t++ ) {
+    		tasks.add( new NarrowPhaseTask( t, (int) ((long) n * t / numTasks), (int) ((long) n * (t+1) / numTasks), false ) );
+    	}
+    	invokeTasks( pool, tasks );
+    	for ( int t = 0; t < numTasks; t++ ) {
+    		NarrowPhase worker = taskNarrowPhases[t];
+    		contacts.addAll( worker.contacts );
+    		worker.applyDeferred();
+    		serialNarrowPhase.nodeTests += worker.nodeTests;
+    		serialNarrowPhase.skippedPairs += worker.skippedPairs;
+    		serialNarrowPhase.hullRejects += worker.hullRejects;
+    	}
+    	Arrays.fill( candidateStates, 0, n, null );
+    }
+    
+    private void invokeTasks( ForkJoinPool pool, ArrayList<NarrowPhaseTask> tasks ) {
+    	try {
+    		for ( Future<Object> f : pool.invokeAll( tasks ) ) {
+    			f.get();
+    		}
+    	} catch ( Exception e ) {
+    		throw new RuntimeException( "Parallel narrow phase failed.", e );
+    	}
+    }
+    
+    /**
+     * Either updates the world coordinates of the trees of a range of bodies, or runs the
+     * narrow phase worker of one task on a range of the candidate pairs
+     */
+    private class NarrowPhaseTask implements Callable<Object> {
+    	int task, from, to;
+    	boolean updateTrees;
+    	NarrowPhaseTask( int task, int from, int to, boolean updateTrees ) {
+    		this.task = task;
+    		this.from = from;
+    		this.to = to;
+    		this.updateTrees = updateTrees;
+    	}
+    	@Override
+    	public Object call() {
+    		if ( updateTrees ) {
+    			for ( int i = from; i < to; i++ ) {
+    				if ( bodyVisitID[i] == visitID ) {
+    					bodies.get(i).bvh.updateAll( visitID );
+    				}
+    			}
+    			return null;
+    		}
+    		NarrowPhase worker = taskNarrowPhases[task];
+    		worker.contacts.clear();
+    		worker.nodeTests = 0;
+    		worker.skippedPairs = 0;
+    		worker.hullRejects = 0;
+    		for ( int k = from; k < to; k++ ) {
+    			long key = candidates.keys[k];
+    			worker.narrowPhase( bodies.get( PairCache.first(key) ), bodies.get( PairCache.second(key) ), candidateStates[k] );
+    		}
+    		return null;
+    	}
+    }
+    
+    /**
+     * Finds the candidate pairs of the grid or sweep and prune broad phase with a ForkJoinPool.
+     * The awake bodies (for the grid) or the overlapping pairs (for sweep and prune) are split
+     * into ranges, each collecting its pairs in its own buffer.  The buffers are merged in 
+     * order, and once sorted the candidates are identical to those of the serial path.
+     * @param useGrid
+     */
+    private void parallelPairs( boolean useGrid ) {
+    	ForkJoinPool pool = ForkJoinPool.commonPool();
+    	int numTasks = 4 * pool.getParallelism();
+    	int n = useGrid ? bodies.size() : sweepAndPrune.numPairs();
+    	if ( taskPairs.length != numTasks ) {
+    		taskPairs = new PairList[numTasks];
+    		for ( int t = 0; t < numTasks; t++ ) {
+    			taskPairs[t] = new PairList();
+    		}
+    	}
+    	ArrayList<BroadPhaseTask> tasks = new ArrayList<BroadPhaseTask>();
+    	for ( int t = 0; t < numTasks; t++ ) {
+    		tasks.add( new BroadPhaseTask( t, (int) ((long) n * t / numTasks), (int) ((long) n * (t+1) / numTasks), useGrid ) );
+    	}
+    	try {
+    		for ( Future<Object> f : pool.invokeAll( tasks ) ) {
+    			f.get();
     		}
-    		else if (bn1.isLeaf()) {
-    			detection(body1,body2,bn1,lst[2]);
-    			detection(body1,body2,bn1, lst[3]);
-    		} 
-    		else if (bn2.isLeaf()) {
-    			detection(body1,body2,lst[0],bn2);
-    			detection(body1,body2,lst[1],bn2);
-    		} 
-    		else {
-    			detection(body1,body2,lst[0],lst[2]);
-    			detection(body1,body2,lst[0],lst[3]);
-    			detection(body1,body2,lst[1],lst[2]);
-    			detection(body1,body2,lst[1],lst[3]);    			
+    	} catch ( Exception e ) {
+    		throw new RuntimeException( "Parallel broad phase failed.", e );
+    	}
+    	for ( int t = 0; t < numTasks; t++ ) {
+    		candidates.addAll( taskPairs[t] );
+    	}
+    }
+    
+    /**
+     * Collects the candidate pairs of a range of bodies or overlapping pairs into the buffer of one task 
+     */
+    private class BroadPhaseTask implements Callable<Object> {
+    	int task, from, to;
+    	boolean useGrid;
+    	BroadPhaseTask( int task, int from, int to, boolean useGrid ) {
+    		this.task = task;
+    		this.from = from;
+    		this.to = to;
+    		this.useGrid = useGrid;
+    	}
+    	@Override
+    	public Object call() {
+    		PairList out = taskPairs[task];
+    		out.clear();
+    		if ( useGrid ) {
+    			for ( int i = from; i < to; i++ ) {
+    				RigidBody b1 = bodies.get(i);
+    				if ( b1.pinned || b1.sleep ) continue;
+    				queryGrid( staticGrid, b1, out );
+    				queryGrid( sleepGrid, b1, out );
+    				queryGrid( grid, b1, out );
+    			}
+    		} else {
+    			sweepAndPrune.findPairs( bodies, from, to, out );
     		}
+    		return null;
     	}
-    }	    
+    }
+    
     /** 
      * The visitID is used to tag boundary volumes that are visited in 
      * a given time step.  Marking boundary volume nodes as visited during
@@ -317,35 +711,32 @@ public class CollisionProcessor {
      */
     public void reset() {
         contacts.clear();
-        Contact.nextContactIndex = 0;
+        detectedBodies = -1;
+        sleepGridStale = true;
         visitID = 0;            
+        sweepAndPrune.clear();
+        mortonSort.clear();
+        aabbTree.clear();
+        pairCache.clear();
+        pairStates.clear();
+    }
+    
+    
+    /**
+     * @return true if any colour changing or texture mapping effect is selected in the controls
+     */
+    boolean hasCollisionEffects() {
+        return colorChanging.getValue() || colorChanging1.getValue() || colorChanging2.getValue() 
+                || textureMapping.getValue() || textureMapping1.getValue();
     }
     
-    // some working variables for processing collisions
-    private Point2d tmp1 = new Point2d();
-    private Point2d tmp2 = new Point2d();
-    private Point2d contactW = new Point2d();
-    private Vector2d force = new Vector2d();
-    private Vector2d contactV1 = new Vector2d();
-    private Vector2d contactV2 = new Vector2d();
-    private Vector2d relativeVelocity = new Vector2d();
-    private Vector2d normal = new Vector2d();
-        
     /**
-     * Processes a collision between two bodies for two given blocks that are colliding.
-     * Currently this implements a penalty force
+     * Applies the colour changing and texture mapping effects selected in the controls to 
+     * two bodies tested for collision
      * @param body1
-     * @param b1
      * @param body2
-     * @param b2
      */
-    private void processCollision( RigidBody body1, Block b1, RigidBody body2, Block b2 ) {        
-        double k = contactSpringStiffness.getValue();
-        double c1 = contactSpringDamping.getValue();
-        double threshold = separationVelocityThreshold.getValue();
-        boolean useSpring = enableContactSpring.getValue();
-        boolean useDamping = enableContactDamping.getValue();
-        
+    void collisionEffects( RigidBody body1, RigidBody body2 ) {
         if(colorChanging.getValue()) {
         	float rand1 = (float)Math.random();
         	float rand2 = (float)Math.random();
@@ -433,73 +824,23 @@ public class CollisionProcessor {
           	  b.mapTexture(img);
             } 
         }
-        
-      double kineticEnergyThres = 1e-4;
-        
-      if (body1.getKineticEnergy() >= kineticEnergyThres || body2.getKineticEnergy() >= kineticEnergyThres) {
-			body1.transformB2W.transform(b1.pB, tmp1);
-			body2.transformB2W.transform(b2.pB, tmp2);
-			double distance = tmp1.distance(tmp2);
-	        if ( distance < Block.radius * 2 ) {
-	            // contact point at halfway between points 
-	            // NOTE: this assumes that the two blocks have the same radius!
-	            contactW.interpolate( tmp1, tmp2, .5 );
-	            // contact normal
-	            normal.sub( tmp2, tmp1 );
-	            normal.normalize();
-	            // create the contact
-	            Contact contact = new Contact( body1, body2, contactW, normal);
-	            // simple option... add to contact list...
-	            contacts.add( contact );
-	            if ( ! doLCP.getValue()) {
-	                // compute relative body velocity at contact point
-	                body1.getSpatialVelocity( contactW, contactV1 );
-	                body2.getSpatialVelocity( contactW, contactV2 );
-	                relativeVelocity.sub( contactV1, contactV2 );
-	                if ( -relativeVelocity.dot( normal ) < threshold ) {
-	                    if ( useSpring ) {
-	                        // spring force
-	                        double interpenetration = distance - Block.radius * 2; // a negative quantity
-	                        force.scale( -interpenetration * k, normal );
-	                        body2.applyContactForceW(contactW, force);
-	                        force.scale(-1);
-	                        body1.applyContactForceW(contactW, force);
-	                    }
-	                    if ( useDamping ) {
-	                        // spring damping forces!
-	                        // vertical
-	                        force.scale( relativeVelocity.dot(normal) * c1, normal );                    
-	                        body2.applyContactForceW( contactW, force );
-	                        force.scale(-1);
-	                        body1.applyContactForceW( contactW, force );
-	                    }
-	                }
-	            }
-	        }
-	    
-	        body1.sleep = false;
-	        body2.sleep = false;
-    		} else if (body1.getKineticEnergy() < kineticEnergyThres) {
-    			body1.sleep = true;
-    		} else if (body2.getKineticEnergy() < kineticEnergyThres) {
-    			body2.sleep = true;
-    		}
     }
+    
    
     /** Stiffness of the contact penalty spring */
-    private DoubleParameter contactSpringStiffness = new DoubleParameter("penalty contact stiffness", 1e3, 1, 1e5 );
+    DoubleParameter contactSpringStiffness = new DoubleParameter("penalty contact stiffness", 1e3, 1, 1e5 );
     
     /** Viscous damping coefficient for the contact penalty spring */
-    private DoubleParameter contactSpringDamping = new DoubleParameter("penalty contact damping", 10, 1, 1e4 );
+    DoubleParameter contactSpringDamping = new DoubleParameter("penalty contact damping", 10, 1, 1e4 );
     
     /** Threshold for the relative velocity in the normal direction, for determining if spring force will be applied. */
-    private DoubleParameter separationVelocityThreshold = new DoubleParameter( "penalty separation velocity threshold (controls bounce)", 1e-9, 1e-9, 1e3 );
+    DoubleParameter separationVelocityThreshold = new DoubleParameter( "penalty separation velocity threshold (controls bounce)", 1e-9, 1e-9, 1e3 );
     
     /** Enables the contact penalty spring */
-    private BooleanParameter enableContactSpring = new BooleanParameter("enable penalty contact spring", true );
+    BooleanParameter enableContactSpring = new BooleanParameter("enable penalty contact spring", true );
     
     /** Enables damping of the contact penalty spring */
-    private BooleanParameter enableContactDamping = new BooleanParameter("enable penalty contact damping", true );
+    BooleanParameter enableContactDamping = new BooleanParameter("enable penalty contact damping", true );
     
     /** Restitution parameter for contact constraints */
     public DoubleParameter restitution = new DoubleParameter( "restitution (bounce)", 0.3, 0, 1 );
@@ -519,10 +860,10 @@ public class CollisionProcessor {
 	public DoubleParameter compliance = new DoubleParameter("compliance", 1e-3, 1e-10, 1  );
     
     /** Flag for switching between penalty based contact and contact constraints */
-    private BooleanParameter doLCP = new BooleanParameter( "do LCP solve", true );
+    BooleanParameter doLCP = new BooleanParameter( "do LCP solve", true );
     
     /** Flag for enabling the use of hierarchical collision detection for body pairs */
-    private BooleanParameter useBVTree = new BooleanParameter( "use BVTree", true );
+    BooleanParameter useBVTree = new BooleanParameter( "use BVTree", true );
     
     private BooleanParameter randomization = new BooleanParameter ("randomization",true);
     
@@ -537,6 +878,101 @@ public class CollisionProcessor {
     
     public BooleanParameter SpatialHash = new BooleanParameter ("Spatial Hash for Broad Phase",false);
     
+    public BooleanParameter useSweepAndPrune = new BooleanParameter ("Sweep and Prune for Broad Phase",false);
+    
+    public BooleanParameter useMortonOrder = new BooleanParameter ("Morton Order for Broad Phase",false);
+    
+    public BooleanParameter useAABBTree = new BooleanParameter ("AABB Tree for Broad Phase",false);
+    
+    /** Amount by which the AABB tree leaf boxes are fattened, bodies moving less than this are not reinserted */
+    public DoubleParameter aabbTreeMargin = new DoubleParameter("AABB tree fat margin", 2, 0, 20 );
+    
+    /** Keeps the AABB tree pairs between steps, only querying the tree for bodies that left their fat box */
+    public BooleanParameter usePairCache = new BooleanParameter ("AABB tree persistent pair cache", true);
+    
+    /** Runs the spatial hash or sweep and prune broad phase on all cores */
+    public BooleanParameter parallelBroadPhase = new BooleanParameter ("parallel broad phase", false);
+    
+    /** 
+     * Runs the narrow phase of the spatial hash, sweep and prune, Morton order, or AABB tree
+     * (without the pair cache) candidate pairs on all cores, with the LCP solve only
+     */
+    public BooleanParameter parallelNarrowPhase = new BooleanParameter ("parallel narrow phase", false);
+    
+    /** 
+     * Restart the traversal of the bounding volume trees of each body pair from where it
+     * stopped on the previous step
+     */
+    public BooleanParameter useBVTTFront = new BooleanParameter ("cache BVTT front between steps", true);
+    
+    /** 
+     * Skip the tree traversal of a body pair found apart until the distance the bodies 
+     * travelled since could have closed the gap between them (conservative advancement)
+     */
+    public BooleanParameter useConservativeAdvancement = new BooleanParameter ("skip separated pairs until they could touch", true);
+    
+    /** 
+     * Skip the node and block pairs of the tree traversal whose outward normal cones,
+     * computed from the pixels around each boundary block, cannot face each other, such
+     * as the blocks on the far side of thin walls
+     */
+    public BooleanParameter useNormalCones = new BooleanParameter ("boundary normal cone culling", false);
+    
+    /** 
+     * Also create contacts for block pairs that are apart by less than the distance the 
+     * bodies can move in the step, which the LCP solve lets close but not pass, so fast
+     * bodies do not tunnel through thin walls at large time steps.  The margins are not
+     * used by the occupancy grid narrow phase, and are limited by the field border with 
+     * distance field contacts.
+     */
+    public BooleanParameter useSpeculativeContacts = new BooleanParameter ("speculative contacts", false);
+    
+    /** 
+     * Reject body pairs whose convex hulls are separated by the contact distance along 
+     * one of their edge normals before traversing their bounding volume trees
+     */
+    public BooleanParameter useHullReject = new BooleanParameter ("convex hull early reject", false);
+    
+    /** 
+     * Test the body frame oriented boxes of the nodes of the bounding volume trees, with 
+     * the separating axis test, once their bounding discs intersect.  The boxes are much
+     * tighter than the discs around elongated shapes.
+     */
+    public BooleanParameter useOrientedBoxes = new BooleanParameter ("oriented box bounding volumes", false);
+    
+    /** 
+     * Look up the boundary blocks of the smaller body of a pair in the pixel occupancy grid 
+     * of the larger body, instead of traversing their bounding volume trees
+     */
+    public BooleanParameter useOccupancyGrid = new BooleanParameter ("occupancy grid narrow phase", false);
+    
+    /** 
+     * Create contacts by sampling the boundary blocks of the smaller body of a pair in the 
+     * signed distance field of the larger body, instead of testing block pairs
+     */
+    public BooleanParameter useDistanceField = new BooleanParameter ("signed distance field contacts", false);
+    
+    /** 
+     * Detect collisions only on the first substep of each time step.  The following
+     * substeps move the contacts with the bodies and recompute their Jacobians, unless 
+     * a body has moved by more than the reuse margin, so new contacts within the margin
+     * are missed until the next detection.  Only used with the LCP solve, as the penalty
+     * forces are applied during the detection.
+     */
+    public BooleanParameter reuseContacts = new BooleanParameter ("reuse contacts across substeps", false);
+    
+    /** distance any body may move before the contacts of the last detection are dropped */
+    public DoubleParameter reuseMargin = new DoubleParameter("contact reuse margin", 0.5, 0, 5 );
+    
+    /** Keep only a few representative contacts per body pair and normal direction for the LCP solve */
+    public BooleanParameter reduceManifolds = new BooleanParameter ("reduce contact manifolds per body pair", false);
+    
+    /** 
+     * Test the blocks of leaf pairs with the Vector API kernel, which falls back to the scalar
+     * kernel when the vector folder is not compiled or the incubator module is missing
+     */
+    public BooleanParameter useVectorKernel = new BooleanParameter ("SIMD leaf kernel (jdk.incubator.vector)", false);
+    
     
     /**
      * @return controls for the collision processor
@@ -551,6 +987,25 @@ public class CollisionProcessor {
 
         vfp.add( warmStart.getControls());
         vfp.add( SpatialHash.getControls());
+        vfp.add( useSweepAndPrune.getControls());
+        vfp.add( useMortonOrder.getControls());
+        vfp.add( useAABBTree.getControls());
+        vfp.add( aabbTreeMargin.getSliderControls(false));
+        vfp.add( usePairCache.getControls());
+        vfp.add( parallelBroadPhase.getControls());
+        vfp.add( parallelNarrowPhase.getControls());
+        vfp.add( useBVTTFront.getControls());
+        vfp.add( useConservativeAdvancement.getControls());
+        vfp.add( useOrientedBoxes.getControls());
+        vfp.add( useHullReject.getControls());
+        vfp.add( useSpeculativeContacts.getControls());
+        vfp.add( useNormalCones.getControls());
+        vfp.add( useOccupancyGrid.getControls());
+        vfp.add( useDistanceField.getControls());
+        vfp.add( reduceManifolds.getControls());
+        vfp.add( reuseContacts.getControls());
+        vfp.add( reuseMargin.getSliderControls(false));
+        vfp.add( useVectorKernel.getControls());
         
 
         vfp.add( colorChanging.getControls());
@@ -11,10 +11,7 @@ import javax.vecmath.Vector2d;
  */
 public class Contact {
 
-    /** Next available contact index, used for determining which rows of the jacobian a contact uses */
-    static public int nextContactIndex = 0;
-    
-    /** Index of this contact, determines its rows in the jacobian */
+    /** Index of this contact, its position in the contact list, which determines its rows in the jacobian */
     int index;
     
     /** Store whether to iterate or not for warm start*/
@@ -30,13 +27,26 @@ public class Contact {
     /** Position of contact point in world coordinates */
     Point2d contactW = new Point2d();
     
+    /** Signed distance between the surfaces at the contact, negative when interpenetrating */
+    double separation = 0;
+    
     Vector2d tangent = new Vector2d();
     
     double[] J1 = new double[6];
     double[] J2 = new double[6];
+    
+    /** Contact point in the body frames of body1 and body2, as found by the collision detection */
+    private Point2d anchor1 = new Point2d();
+    private Point2d anchor2 = new Point2d();
+    
+    /** Contact normal in the body frame of body1 */
+    private Vector2d normalB = new Vector2d();
+    
+    /** Distance between the anchors along the normal at the last update, zero when detected */
+    private double anchorOffset = 0;
 
     /**
-     * Creates a new contact, and assigns it an index
+     * Creates a new contact, its index is set once all contacts are found
      * @param body1
      * @param body2
      * @param contactW
@@ -49,7 +59,18 @@ public class Contact {
         this.contactW.set( contactW );
         this.normal.set( normal );    
         
-        index = nextContactIndex++;        
+        // body frame anchors, so the contact can follow the bodies over later substeps
+        body1.transformW2B.transform( this.contactW, anchor1 );
+        body2.transformW2B.transform( this.contactW, anchor2 );
+        body1.transformW2B.transform( this.normal, normalB );
+        computeJacobian();
+    }
+    
+    /**
+     * Computes the normal and tangent rows of the contact Jacobian at the current 
+     * contact point and normal
+     */
+    private void computeJacobian() {
         // objective 3 TODO: you may want to add code here to compute and store the contact Jacobian
 //        tangent perp norm
         this.tangent = new Vector2d(-normal.y, normal.x);
@@ -69,7 +90,25 @@ public class Contact {
         tmp2 = rbPerp.dot(tangent);
         //Jrow2 = [-tx,-ty, -t.'*ra_perp, tx,ty,t.'*rb_perp]
         this.J2 = new double[] {-this.tangent.x, -this.tangent.y, -tmp1, this.tangent.x, this.tangent.y, tmp2};
-        
+    }
+    
+    /**
+     * Moves the contact with the bodies, without a new collision detection, after they
+     * were advanced by a substep.  The contact point goes to the midpoint of the anchors
+     * carried by each body, the normal turns with the first body, and the separation 
+     * changes by the motion of the anchors apart along the normal.
+     */
+    public void update() {
+        Point2d w1 = new Point2d();
+        Point2d w2 = new Point2d();
+        body1.transformB2W.transform( anchor1, w1 );
+        body2.transformB2W.transform( anchor2, w2 );
+        contactW.interpolate( w1, w2, 0.5 );
+        body1.transformB2W.transform( normalB, normal );
+        double offset = normal.x * ( w2.x - w1.x ) + normal.y * ( w2.y - w1.y );
+        separation += offset - anchorOffset;
+        anchorOffset = offset;
+        computeJacobian();
     }
     
     /**
@@ -0,0 +1,120 @@
+package comp559.lcp;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Convex hull of the block centers of a body, in body coordinates, with the outward
+ * normals of its edges.  Two bodies can only have touching blocks when their hulls are
+ * closer than 2 Block.radius, which the separating axis test checks in time linear in
+ * the number of hull vertices, as the support points of the other hull are found by 
+ * walking around it while the edge normals turn.
+ * @author kry
+ */
+public class ConvexHull {
+
+    /** hull vertices in counter clockwise order */
+    final double[] x, y;
+
+    /** outward unit normal of the edge from vertex k to vertex k+1 */
+    final double[] nx, ny;
+
+    /** projection of the hull on the normal of each edge, the largest of any vertex */
+    final double[] d;
+
+    /** number of vertices */
+    final int size;
+
+    /**
+     * Builds the hull of the given blocks with the monotone chain algorithm
+     * @param blocks
+     */
+    public ConvexHull( Collection<Block> blocks ) {
+        double[][] p = new double[blocks.size()][];
+        int i = 0;
+        for ( Block b : blocks ) {
+            p[i++] = new double[] { b.pB.x, b.pB.y };
+        }
+        Arrays.sort( p, (a, b) -> a[0] != b[0] ? Double.compare( a[0], b[0] ) : Double.compare( a[1], b[1] ) );
+        double[][] h = new double[2 * p.length + 1][];
+        int k = 0;
+        // lower chain, then upper chain
+        for ( i = 0; i < p.length; i++ ) {
+            while ( k >= 2 && cross( h[k-2], h[k-1], p[i] ) <= 0 ) k--;
+            h[k++] = p[i];
+        }
+        for ( int j = p.length - 2, lower = k + 1; j >= 0; j-- ) {
+            while ( k >= lower && cross( h[k-2], h[k-1], p[j] ) <= 0 ) k--;
+            h[k++] = p[j];
+        }
+        // the last point repeats the first
+        size = Math.max( 1, k - 1 );
+        x = new double[size];
+        y = new double[size];
+        nx = new double[size];
+        ny = new double[size];
+        d = new double[size];
+        for ( i = 0; i < size; i++ ) {
+            x[i] = h[i][0];
+            y[i] = h[i][1];
+        }
+        for ( i = 0; i < size; i++ ) {
+            int j = ( i + 1 ) % size;
+            double ex = x[j] - x[i];
+            double ey = y[j] - y[i];
+            double len = Math.sqrt( ex*ex + ey*ey );
+            if ( len == 0 ) continue; // a single vertex has no edges
+            nx[i] = ey / len;
+            ny[i] = -ex / len;
+            d[i] = nx[i] * x[i] + ny[i] * y[i];
+        }
+    }
+
+    private static double cross( double[] o, double[] a, double[] b ) {
+        return ( a[0] - o[0] ) * ( b[1] - o[1] ) - ( a[1] - o[1] ) * ( b[0] - o[0] );
+    }
+
+    /**
+     * Computes the largest separation of another hull from this one along the edge 
+     * normals of this hull, with the other hull mapped into the frame of this one
+     * @param other
+     * @param m00 rotation and translation from the frame of the other hull to this one
+     * @param m01
+     * @param m02
+     * @param m10
+     * @param m11
+     * @param m12
+     * @param px scratch for the mapped vertices, at least the size of the other hull
+     * @param py
+     * @return the largest separation, or -Double.MAX_VALUE if this hull has no edges
+     */
+    double separation( ConvexHull other, double m00, double m01, double m02, double m10, double m11, double m12, double[] px, double[] py ) {
+        if ( size < 2 ) return -Double.MAX_VALUE;
+        int m = other.size;
+        for ( int i = 0; i < m; i++ ) {
+            px[i] = m00 * other.x[i] + m01 * other.y[i] + m02;
+            py[i] = m10 * other.x[i] + m11 * other.y[i] + m12;
+        }
+        // support point of the other hull against the first normal
+        int j = 0;
+        double min = nx[0] * px[0] + ny[0] * py[0];
+        for ( int i = 1; i < m; i++ ) {
+            double proj = nx[0] * px[i] + ny[0] * py[i];
+            if ( proj < min ) { min = proj; j = i; }
+        }
+        double sep = -Double.MAX_VALUE;
+        for ( int k = 0; k < size; k++ ) {
+            // the normals turn counter clockwise, and so does the support point
+            double proj = nx[k] * px[j] + ny[k] * py[j];
+            for ( int steps = 0; steps < m; steps++ ) {
+                int next = j + 1 == m ? 0 : j + 1;
+                double p = nx[k] * px[next] + ny[k] * py[next];
+                if ( p >= proj ) break;
+                proj = p;
+                j = next;
+            }
+            sep = Math.max( sep, proj - d[k] );
+        }
+        return sep;
+    }
+
+}
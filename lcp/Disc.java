@@ -48,6 +48,18 @@ public class Disc {
         r = mec.answer.radius + Block.radius;
     }
     
+    /**
+     * Creates a copy of a disc for another body with the same body coordinates
+     * @param disc
+     * @param body
+     */
+    public Disc( Disc disc, RigidBody body ) {
+        this.body = body;
+        cB.set( disc.cB );
+        r = disc.r;
+        body.transformB2W.transform(cB, cW);
+    }
+    
     /** number of points in the circle for drawing bounding circles */
     static private final int size = 30;
     static private FloatBuffer vertexBuffer;    
@@ -83,9 +95,20 @@ public class Disc {
      */
     public void display( GLAutoDrawable drawable ) {
         body.transformB2W.transform(cB, cW);
+        draw( drawable, cW.x, cW.y, r );
+    }
+    
+    /**
+     * Draws a circle with the given world center and radius
+     * @param drawable
+     * @param x
+     * @param y
+     * @param r
+     */
+    static public void draw( GLAutoDrawable drawable, double x, double y, double r ) {
         GL2 gl = drawable.getGL().getGL2();
         gl.glPushMatrix();
-        gl.glTranslated( cW.x, cW.y , 0 );
+        gl.glTranslated( x, y, 0 );
         gl.glScaled( r, r, r );
         gl.glColor4f(0.5f,0.0f,0.0f,0.5f);
         gl.glEnableClientState( GL2.GL_VERTEX_ARRAY );     
@@ -114,12 +137,14 @@ public class Disc {
     
     /**
      * Checks for intersection of this disc with another using their currently 
-     * computed center location in world coordinates (cW) 
+     * computed center location in world coordinates (cW), with the discs grown by 
+     * the speculative contact margins of their bodies
      * @param d
      * @return true if intersection
      */
     public boolean intersects( Disc d ) {
-        return cW.distanceSquared(d.cW) < (r + d.r)*(r + d.r);
+        double rr = r + d.r + body.margin + d.body.margin;
+        return cW.distanceSquared(d.cW) < rr*rr;
     }
     
 }
@@ -0,0 +1,157 @@
+package comp559.lcp;
+import java.util.Collection;
+
+/**
+ * Signed distance field of a body shape, sampled at the pixel centers of its image
+ * mask, in body coordinates.  Outside the body the value is the distance to the nearest
+ * pixel of the body, inside it is minus the distance to the nearest pixel outside, and
+ * both are shifted by half a pixel so the zero level lies on the pixel boundary.
+ * Distances are computed exactly with the separable squared distance transform of
+ * Felzenszwalb and Huttenlocher, and interpolated bilinearly between pixel centers.
+ * @author kry
+ */
+public class DistanceField {
+
+    /** number of pixels around the mask, enough for the contact distance of two blocks */
+    static final int BORDER = (int) Math.ceil( 2 * Block.radius ) + 2;
+
+    /** large value returned outside of the field */
+    static final double FAR = Double.MAX_VALUE;
+
+    /** column and row of the pixel (0,0) of the field in the image */
+    final int col0, row0;
+
+    /** size of the field in pixels */
+    final int cols, rows;
+
+    /** body frame position of the center of the pixel at column 0 and row 0 of the image */
+    final double offsetX, offsetY;
+
+    /** signed distance at each pixel center, row by row */
+    final double[] phi;
+
+    /**
+     * Builds the distance field of the pixels of the given blocks
+     * @param blocks all blocks of the body, duplicates are allowed
+     */
+    public DistanceField( Collection<Block> blocks ) {
+        int minCol = Integer.MAX_VALUE, minRow = Integer.MAX_VALUE;
+        int maxCol = Integer.MIN_VALUE, maxRow = Integer.MIN_VALUE;
+        Block first = null;
+        for ( Block b : blocks ) {
+            if ( first == null ) first = b;
+            minCol = Math.min( minCol, b.j );
+            minRow = Math.min( minRow, b.i );
+            maxCol = Math.max( maxCol, b.j );
+            maxRow = Math.max( maxRow, b.i );
+        }
+        col0 = minCol - BORDER;
+        row0 = minRow - BORDER;
+        cols = maxCol - minCol + 1 + 2 * BORDER;
+        rows = maxRow - minRow + 1 + 2 * BORDER;
+        offsetX = first.pB.x - first.j;
+        offsetY = first.pB.y - first.i;
+        int n = cols * rows;
+        boolean[] inside = new boolean[n];
+        for ( Block b : blocks ) {
+            inside[( b.i - row0 ) * cols + ( b.j - col0 )] = true;
+        }
+        double[] toInside = new double[n];
+        double[] toOutside = new double[n];
+        for ( int p = 0; p < n; p++ ) {
+            toInside[p] = inside[p] ? 0 : FAR;
+            toOutside[p] = inside[p] ? FAR : 0;
+        }
+        transform( toInside );
+        transform( toOutside );
+        phi = new double[n];
+        for ( int p = 0; p < n; p++ ) {
+            phi[p] = inside[p] ? 0.5 - Math.sqrt( toOutside[p] ) : Math.sqrt( toInside[p] ) - 0.5;
+        }
+    }
+
+    /**
+     * Replaces the values, zero at the sites and FAR elsewhere, by the squared distance
+     * to the nearest site, with 1D transforms along the rows and then the columns
+     * @param f
+     */
+    private void transform( double[] f ) {
+        int len = Math.max( cols, rows );
+        double[] line = new double[len];
+        double[] out = new double[len];
+        int[] v = new int[len];
+        double[] z = new double[len+1];
+        for ( int r = 0; r < rows; r++ ) {
+            for ( int c = 0; c < cols; c++ ) line[c] = f[r * cols + c];
+            transform1D( line, cols, out, v, z );
+            for ( int c = 0; c < cols; c++ ) f[r * cols + c] = out[c];
+        }
+        for ( int c = 0; c < cols; c++ ) {
+            for ( int r = 0; r < rows; r++ ) line[r] = f[r * cols + c];
+            transform1D( line, rows, out, v, z );
+            for ( int r = 0; r < rows; r++ ) f[r * cols + c] = out[r];
+        }
+    }
+
+    /**
+     * 1D squared distance transform, the lower envelope of the parabolas rooted at each sample
+     * @param f sampled function
+     * @param n number of samples
+     * @param d output
+     * @param v scratch, locations of the parabolas of the envelope
+     * @param z scratch, boundaries between the parabolas of the envelope
+     */
+    private static void transform1D( double[] f, int n, double[] d, int[] v, double[] z ) {
+        int k = -1;
+        for ( int q = 0; q < n; q++ ) {
+            if ( f[q] == FAR ) continue;
+            double s = Double.NEGATIVE_INFINITY;
+            while ( k >= 0 ) {
+                s = ( ( f[q] + q*q ) - ( f[v[k]] + v[k]*v[k] ) ) / ( 2.0*q - 2.0*v[k] );
+                if ( s > z[k] ) break;
+                k--;
+            }
+            k++;
+            v[k] = q;
+            z[k] = k == 0 ? Double.NEGATIVE_INFINITY : s;
+            z[k+1] = Double.POSITIVE_INFINITY;
+        }
+        if ( k < 0 ) {
+            // no sites on this line
+            for ( int q = 0; q < n; q++ ) d[q] = FAR;
+            return;
+        }
+        int j = 0;
+        for ( int q = 0; q < n; q++ ) {
+            while ( z[j+1] < q ) j++;
+            double dq = q - v[j];
+            d[q] = dq*dq + f[v[j]];
+        }
+    }
+
+    /**
+     * Interpolates the signed distance and its gradient at a body frame point
+     * @param x
+     * @param y
+     * @param grad receives the gradient, left unchanged outside the field
+     * @return the signed distance, or FAR outside of the field
+     */
+    public double distance( double x, double y, double[] grad ) {
+        double u = x - offsetX - col0;
+        double v = y - offsetY - row0;
+        if ( ! ( u >= 0 && v >= 0 && u < cols - 1 && v < rows - 1 ) ) return FAR;
+        int c = (int) u;
+        int r = (int) v;
+        double fu = u - c;
+        double fv = v - r;
+        int p = r * cols + c;
+        double p00 = phi[p];
+        double p10 = phi[p + 1];
+        double p01 = phi[p + cols];
+        double p11 = phi[p + cols + 1];
+        grad[0] = ( 1 - fv ) * ( p10 - p00 ) + fv * ( p11 - p01 );
+        grad[1] = ( 1 - fu ) * ( p01 - p00 ) + fu * ( p11 - p10 );
+        return ( 1 - fv ) * ( ( 1 - fu ) * p00 + fu * p10 ) + fv * ( ( 1 - fu ) * p01 + fu * p11 );
+    }
+
+}
@@ -64,6 +64,7 @@ public class Factory {
         for ( RigidBody b : pinnedBodies ) {
             system.bodies.add( new RigidBody(b) );
         }
+        system.tuneGrid();
     }
     
     /** keeps track of elapsed time since last rigid body creation */
@@ -111,6 +112,7 @@ public class Factory {
         body.v.y =  downVelocity.getValue();
         body.updateTransformations();
         system.add( body );
+        system.retuneGridIfNeeded();
     }
     
     /** Specifies the width of the zone from which new objects will be dropped */
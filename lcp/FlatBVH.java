@@ -0,0 +1,310 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+import javax.vecmath.Matrix3d;
+
+import com.jogamp.opengl.GLAutoDrawable;
+
+/**
+ * Bounding volume tree of a body for the narrow phase, as a shared BVHShape and the 
+ * world centers of its discs and world positions of its leaf blocks for this body.  
+ * World centers and positions are updated lazily, at most once per visit ID, unless 
+ * they were all updated for the visit ID beforehand with updateAll.
+ * @author kry
+ */
+public class FlatBVH {
+
+    /** topology, body frame discs and leaf blocks, possibly shared with other bodies */
+    final BVHShape shape;
+
+    /** disc centers in world coordinates, valid for nodes with the current visit ID */
+    final double[] cWx, cWy;
+
+    /** last visit ID at which each node was visited and its world center updated */
+    final int[] visitID;
+
+    /** leaf block positions in world coordinates, in the block order of the shape */
+    final double[] bWx, bWy;
+
+    /** last visit ID at which the world block positions of each leaf were updated */
+    final int[] blockVisitID;
+
+    /** visit ID at which all world centers and block positions were last updated */
+    private int updateAllVisitID = -1;
+
+    /** body transformation used by the last updateAll */
+    private double allM00, allM10, allM02, allM12;
+
+    /** true while all world centers and block positions are those of the last updateAll */
+    private boolean allCurrent = false;
+
+    /** body to which the tree belongs */
+    final RigidBody body;
+
+    /** reusable stack for drawing */
+    private int[] stack = new int[32];
+
+    /**
+     * Creates the tree of a body with the given shape, which only allocates the
+     * per node world centers and visit IDs
+     * @param shape
+     * @param body
+     */
+    public FlatBVH( BVHShape shape, RigidBody body ) {
+        this.shape = shape;
+        this.body = body;
+        cWx = new double[shape.numNodes];
+        cWy = new double[shape.numNodes];
+        visitID = new int[shape.numNodes];
+        Arrays.fill( visitID, -1 );
+        bWx = new double[shape.blocks.length];
+        bWy = new double[shape.blocks.length];
+        blockVisitID = new int[shape.numNodes];
+        Arrays.fill( blockVisitID, -1 );
+    }
+
+    /**
+     * @param n
+     * @return true if node n is a leaf
+     */
+    public boolean isLeaf( int n ) {
+        return shape.child1[n] < 0;
+    }
+
+    /**
+     * Updates the world center of node n from the current body transformation
+     * @param n
+     */
+    public void updatecW( int n ) {
+        allCurrent = false;
+        Matrix3d T = body.transformB2W.T;
+        double x = shape.cBx[n];
+        double y = shape.cBy[n];
+        cWx[n] = T.m00 * x + T.m01 * y + T.m02;
+        cWy[n] = T.m10 * x + T.m11 * y + T.m12;
+    }
+
+    /**
+     * Marks node n as visited, updating its world center if it was not yet visited with this ID
+     * @param n
+     * @param visit
+     */
+    public void visit( int n, int visit ) {
+        if ( visitID[n] != visit ) {
+            visitID[n] = visit;
+            if ( updateAllVisitID != visit ) updatecW( n );
+        }
+    }
+
+    /**
+     * Updates the world centers of all nodes and the world positions of all blocks for
+     * the given visit ID.  Visits with this ID then only mark the nodes, so several threads
+     * can traverse the tree at once.  Nothing is computed if the body has not moved since
+     * the last call, as with pinned and sleeping bodies.
+     * @param visit
+     */
+    public void updateAll( int visit ) {
+        Matrix3d T = body.transformB2W.T;
+        updateAllVisitID = visit;
+        if ( allCurrent && T.m00 == allM00 && T.m10 == allM10 && T.m02 == allM02 && T.m12 == allM12 ) return;
+        for ( int n = 0; n < shape.numNodes; n++ ) {
+            updatecW( n );
+        }
+        double[] bx = shape.bx;
+        double[] by = shape.by;
+        for ( int i = 0; i < bx.length; i++ ) {
+            bWx[i] = T.m00 * bx[i] + T.m01 * by[i] + T.m02;
+            bWy[i] = T.m10 * bx[i] + T.m11 * by[i] + T.m12;
+        }
+        allM00 = T.m00;
+        allM10 = T.m10;
+        allM02 = T.m02;
+        allM12 = T.m12;
+        allCurrent = true;
+    }
+
+    /**
+     * Updates the world positions of the blocks of leaf n, if not yet done with this visit ID
+     * @param n
+     * @param visit
+     */
+    public void updateBlocks( int n, int visit ) {
+        if ( blockVisitID[n] == visit || updateAllVisitID == visit ) return;
+        blockVisitID[n] = visit;
+        allCurrent = false;
+        Matrix3d T = body.transformB2W.T;
+        double[] bx = shape.bx;
+        double[] by = shape.by;
+        int end = shape.leafStart[n] + shape.leafCount[n];
+        for ( int i = shape.leafStart[n]; i < end; i++ ) {
+            bWx[i] = T.m00 * bx[i] + T.m01 * by[i] + T.m02;
+            bWy[i] = T.m10 * bx[i] + T.m11 * by[i] + T.m12;
+        }
+    }
+
+    /**
+     * Checks for intersection of a disc of this tree with a disc of another, using
+     * their current world centers, with the discs grown by the speculative contact 
+     * margins of the bodies
+     * @param n
+     * @param other
+     * @param m
+     * @return true if the discs intersect
+     */
+    public boolean intersects( int n, FlatBVH other, int m ) {
+        double dx = cWx[n] - other.cWx[m];
+        double dy = cWy[n] - other.cWy[m];
+        double rr = shape.r[n] + other.shape.r[m] + body.margin + other.body.margin;
+        return dx*dx + dy*dy < rr*rr;
+    }
+
+    /**
+     * Computes the gap between a disc of this tree and a disc of another, using their
+     * current world centers
+     * @param n
+     * @param other
+     * @param m
+     * @return distance between the discs, negative if they intersect
+     */
+    public double gap( int n, FlatBVH other, int m ) {
+        double dx = cWx[n] - other.cWx[m];
+        double dy = cWy[n] - other.cWy[m];
+        return Math.sqrt( dx*dx + dy*dy ) - ( shape.r[n] + other.shape.r[m] );
+    }
+
+    /**
+     * Computes a lower bound on the gap between an oriented box of this tree and one of 
+     * another with the separating axis test, over the two axes of each box.  The 
+     * separation of the boxes along a unit axis is at most their distance.
+     * @param n
+     * @param other
+     * @param m
+     * @return largest separation of the boxes along the axes, negative if they intersect
+     */
+    public double boxGap( int n, FlatBVH other, int m ) {
+        BVHShape s2 = other.shape;
+        Matrix3d T1 = body.transformB2W.T;
+        Matrix3d T2 = other.body.transformB2W.T;
+        // world box centers and first axes, the second axes are their perpendiculars
+        double ax = T1.m00 * shape.boxCx[n] + T1.m01 * shape.boxCy[n] + T1.m02;
+        double ay = T1.m10 * shape.boxCx[n] + T1.m11 * shape.boxCy[n] + T1.m12;
+        double bx = T2.m00 * s2.boxCx[m] + T2.m01 * s2.boxCy[m] + T2.m02;
+        double by = T2.m10 * s2.boxCx[m] + T2.m11 * s2.boxCy[m] + T2.m12;
+        double aux = T1.m00 * shape.boxUx[n] + T1.m01 * shape.boxUy[n];
+        double auy = T1.m10 * shape.boxUx[n] + T1.m11 * shape.boxUy[n];
+        double bux = T2.m00 * s2.boxUx[m] + T2.m01 * s2.boxUy[m];
+        double buy = T2.m10 * s2.boxUx[m] + T2.m11 * s2.boxUy[m];
+        double ahx = shape.boxHx[n], ahy = shape.boxHy[n];
+        double bhx = s2.boxHx[m], bhy = s2.boxHy[m];
+        double tx = bx - ax;
+        double ty = by - ay;
+        // cosine and sine of the angle between the first axes
+        double c = Math.abs( aux * bux + auy * buy );
+        double s = Math.abs( aux * buy - auy * bux );
+        double gap = Math.abs( tx * aux + ty * auy ) - ( ahx + bhx * c + bhy * s );
+        gap = Math.max( gap, Math.abs( -tx * auy + ty * aux ) - ( ahy + bhx * s + bhy * c ) );
+        gap = Math.max( gap, Math.abs( tx * bux + ty * buy ) - ( bhx + ahx * c + ahy * s ) );
+        gap = Math.max( gap, Math.abs( -tx * buy + ty * bux ) - ( bhy + ahx * s + ahy * c ) );
+        return gap;
+    }
+
+    /**
+     * Checks if blocks of a node of this tree and of a node of another can face each other,
+     * that is, if the direction between two of their block centers can be in the normal cone
+     * of the first node while its opposite is in the normal cone of the second.  The 
+     * directions between the block centers are in the cone around the line joining the disc
+     * centers with a half angle whose sine is the sum of the radii of the discs of the block 
+     * centers over the distance.
+     * @param n
+     * @param other
+     * @param m
+     * @return false if the blocks of the nodes cannot face each other
+     */
+    public boolean conesFace( int n, FlatBVH other, int m ) {
+        double cx = other.cWx[m] - cWx[n];
+        double cy = other.cWy[m] - cWy[n];
+        double dist = Math.sqrt( cx*cx + cy*cy );
+        double sinD = ( shape.r[n] + other.shape.r[m] - 2 * Block.radius ) / dist;
+        if ( ! ( sinD < 1 ) ) return true;
+        double cosD = Math.sqrt( 1 - sinD*sinD );
+        return inCone( n, cx, cy, dist, sinD, cosD ) && other.inCone( m, -cx, -cy, dist, sinD, cosD );
+    }
+
+    /**
+     * Checks if a cone of directions intersects the normal cone of node n
+     * @param n
+     * @param cx world axis of the cone of directions
+     * @param cy
+     * @param dist length of the axis
+     * @param sinD sine of the half angle of the cone of directions
+     * @param cosD cosine of the half angle of the cone of directions
+     * @return true if the cones intersect
+     */
+    private boolean inCone( int n, double cx, double cy, double dist, double sinD, double cosD ) {
+        double h = shape.coneHalf[n];
+        if ( h >= NormalCone.FULL ) return true;
+        // the half angles add up to at least PI
+        if ( h > Math.PI / 2 && sinD >= shape.coneSin[n] ) return true;
+        Matrix3d T = body.transformB2W.T;
+        double bx = T.m00 * cx + T.m10 * cy;
+        double by = T.m01 * cx + T.m11 * cy;
+        double cosSum = cosD * shape.coneCos[n] - sinD * shape.coneSin[n];
+        return bx * shape.coneX[n] + by * shape.coneY[n] >= cosSum * dist;
+    }
+
+    /**
+     * Checks if a block of this tree and a block of another face each other, that is, if
+     * the direction from the first to the second is in the normal cone of the first, and 
+     * the opposite direction is in the normal cone of the second
+     * @param i block of this tree
+     * @param other
+     * @param j block of the other tree
+     * @param dx world direction from the first block to the second
+     * @param dy
+     * @param dist length of the direction
+     * @return true if the blocks face each other
+     */
+    public boolean blocksFace( int i, FlatBVH other, int j, double dx, double dy, double dist ) {
+        Matrix3d T = body.transformB2W.T;
+        if ( ( T.m00 * dx + T.m10 * dy ) * shape.bConeX[i] + ( T.m01 * dx + T.m11 * dy ) * shape.bConeY[i] < dist * shape.bConeCos[i] ) return false;
+        Matrix3d U = other.body.transformB2W.T;
+        BVHShape s2 = other.shape;
+        return -( U.m00 * dx + U.m10 * dy ) * s2.bConeX[j] - ( U.m01 * dx + U.m11 * dy ) * s2.bConeY[j] >= dist * s2.bConeCos[j];
+    }
+
+    /**
+     * Draws all the bounding discs
+     * @param drawable
+     */
+    public void display( GLAutoDrawable drawable ) {
+        for ( int n = 0; n < shape.numNodes; n++ ) {
+            updatecW( n );
+            Disc.draw( drawable, cWx[n], cWy[n], shape.r[n] );
+        }
+    }
+
+    /**
+     * Draws the bounding discs at the boundary where the disc was visited but its children were not.
+     * @param drawable
+     * @param visit
+     */
+    public void displayVisitBoundary( GLAutoDrawable drawable, int visit ) {
+        int sp = 0;
+        stack[sp++] = 0;
+        while ( sp > 0 ) {
+            int n = stack[--sp];
+            // both children are visited, or not, never one or the other
+            if ( isLeaf( n ) || visitID[shape.child1[n]] != visit ) {
+                updatecW( n );
+                Disc.draw( drawable, cWx[n], cWy[n], shape.r[n] );
+            } else {
+                if ( sp + 2 > stack.length ) {
+                    stack = Arrays.copyOf( stack, stack.length * 2 );
+                }
+                stack[sp++] = shape.child2[n];
+                stack[sp++] = shape.child1[n];
+            }
+        }
+    }
+
+}
@@ -11,10 +11,8 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.text.DecimalFormat;
@@ -30,7 +28,6 @@ import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.border.TitledBorder;
-import javax.vecmath.Color3f;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point2d;
 import javax.vecmath.Point3d;
@@ -114,6 +111,7 @@ public class LCPApp implements SceneGraphNode, Interactor {
         if ( run.getValue() ) {
             double dt = stepsize.getValue() / (int)substeps.getValue();
             for ( int i = 0; i < substeps.getValue(); i++ ) {
+                system.collisionProcessor.firstSubstep = i == 0;
                 if ( factory.use ) factory.advanceTime( dt );
                 system.advanceTime( dt );                
             }
@@ -167,11 +165,17 @@ public class LCPApp implements SceneGraphNode, Interactor {
         text += "compute time = " + system.computeTime + "\n";
         text += "collision detection = " + system.collisionProcessor.collisionDetectTime + "\n";
         text += "collision processing = " + system.collisionProcessor.collisionSolveTime + "\n";
+        text += "BV node tests = " + system.collisionProcessor.nodeTests + " (" + system.collisionProcessor.skippedPairs + " pairs skipped, " + system.collisionProcessor.hullRejects + " rejected by hulls)\n";
         text += "h = " + stepsize.getValue() + " (with " + substeps.getValue() + " substeps)\n";
         text += "PGS iterations = " + system.collisionProcessor.iterations.getValue() + "\n";
         text += "mu = " + system.collisionProcessor.friction.getValue() + "\n";
         text += "r = " + system.collisionProcessor.restitution.getValue() +"\n";
         //text += "Used Spatial Hash?" + system.collisionProcessor.SpatialHash.getValue() +"\n";
+        if ( system.collisionProcessor.SpatialHash.getValue() ) {
+        	UniformGrid grid = system.grid;
+        	text += "grid cell = " + grid.cellSize + " (" + grid.cols + "x" + grid.rows + ", radius p90 = " + system.tunedRadius + " over " + system.tunedCount + " bodies)\n";
+        	text += "grid entries = " + grid.numEntries + " in " + grid.numOccupiedCells() + " cells, max per cell = " + grid.maxCellCount() + "\n";
+        }
         
         if ( ! hideOverlay.getValue() ) {
         	EasyViewer.printTextLines( drawable, text, 10, 10, 12, GLUT.BITMAP_HELVETICA_10 );
@@ -254,60 +258,10 @@ public class LCPApp implements SceneGraphNode, Interactor {
     		systemClear();
     		system.name = f.toString();
     		//System.out.println("from text");
-    		BufferedReader br = new BufferedReader(new FileReader (f));
-    		br.readLine();
-    		imageWidth = Double.parseDouble(br.readLine());
-    		br.readLine();
-    		imageHeight = Double.parseDouble(br.readLine());
-    		br.readLine();
-    		int numBodies = Integer.parseInt(br.readLine());
-    		for(int i = 0; i<numBodies ;i++ ) {
-    			ArrayList<Block> blocks = new ArrayList<Block>();
-    			ArrayList<Block> boundaryBlocks = new ArrayList<Block>();
-    			//ArrayList<Block> spPos = new ArrayList<Block>();
-    			//Blocks:
-    			br.readLine();
-    			String[] blockList = br.readLine().split(";");
-    		    int eachi = -1;
-    		    int eachj = -1;
-    			Color3f eachc = new Color3f();
-    			for(int j=0; j<blockList.length;j++) {
-    				String[] eachBlock = blockList[j].split(" ");
-    				eachi = Integer.parseInt(eachBlock[0]);
-    				eachj = Integer.parseInt(eachBlock[1]);
-    				String temp = eachBlock[2];
-    				Float cx = Float.parseFloat(temp.substring(1,temp.length()-1));
-    				temp = eachBlock[3];
-    				Float cy = Float.parseFloat(temp.substring(0,temp.length()-1));
-    				temp = eachBlock[4];
-    				Float cz = Float.parseFloat(temp.substring(0,temp.length()-1));
-    				eachc.set(cx,cy,cz);
-    				Block block = new Block(eachi,eachj,eachc);
-    				blocks.add(block);
-    			}
-    			//System.out.println("blocks size =" +blocks.size());
-    			//BoundaryBlocks:
-    			br.readLine();
-    			blockList = br.readLine().split(";");
-    			for(int j=0; j<blockList.length;j++) {
-    				String[] eachBlock = blockList[j].split(" ");
-    				eachi = Integer.parseInt(eachBlock[0]);
-    				eachj = Integer.parseInt(eachBlock[1]);
-    				String temp = eachBlock[2];
-    				Float cx = Float.parseFloat(temp.substring(1,temp.length()-1));
-    				temp = eachBlock[3];
-    				Float cy = Float.parseFloat(temp.substring(0,temp.length()-1));
-    				temp = eachBlock[4];
-    				Float cz = Float.parseFloat(temp.substring(0,temp.length()-1));
-    				eachc.set(cx,cy,cz);
-    				Block block = new Block(eachi,eachj,eachc);
-    				boundaryBlocks.add(block);
-    			}
-    			//System.out.println("boundary blocks size =" +boundaryBlocks.size());
-    			RigidBody body = new RigidBody(blocks,boundaryBlocks);
-    			system.bodies.add(body);
-    		}
-    		br.close();
+    		BVNode.maxLeafBlocks = leafBlocks.getValue();
+    		system.loadTxt(f);
+    		imageWidth = system.imageWidth;
+    		imageHeight = system.imageHeight;
     	}catch(Exception e) {		
     		throw new RuntimeException("Failed to load simulation input file.",e);
     	}
@@ -471,8 +425,9 @@ public class LCPApp implements SceneGraphNode, Interactor {
         
         
         VerticalFlowPanel vfp2 = new VerticalFlowPanel();
-        vfp2.setBorder( new TitledBorder("white epsilon") );
+        vfp2.setBorder( new TitledBorder("image loading") );
         vfp2.add( whiteEpsilon.getSliderControls(false) );
+        vfp2.add( leafBlocks.getSliderControls() );
         CollapsiblePanel vcp2 = new CollapsiblePanel(vfp2.getPanel());
         vcp2.collapse();
         vfp.add( vcp2 );
@@ -485,6 +440,9 @@ public class LCPApp implements SceneGraphNode, Interactor {
     }
     
     DoubleParameter whiteEpsilon = new DoubleParameter( "white epsilon", 0.05, 0, 1 );
+    
+    /** Largest number of blocks in a bounding volume tree leaf, for the bodies of the next loaded system */
+    IntParameter leafBlocks = new IntParameter( "max blocks per BVH leaf", 4, 1, 64 );
         
     // parameters and variables for for scaling and translating the window
     private DoubleParameter scale = new DoubleParameter("scale scene",.9, 0.1, 10);
@@ -510,11 +468,13 @@ public class LCPApp implements SceneGraphNode, Interactor {
         factory.use = false;        
         systemClear();
         system.name = filename;
+        BVNode.maxLeafBlocks = leafBlocks.getValue();
         ImageBlocker blocker = new ImageBlocker( filename, (float) (double) whiteEpsilon.getValue() );
         system.SHinit(blocker.width, blocker.height);
         imageWidth = blocker.width;
         imageHeight= blocker.height;
         system.bodies.addAll(blocker.bodies);
+        system.tuneGrid();
         
 //        System.out.println("imageWidth:");
 //        System.out.println(imageWidth);
@@ -536,6 +496,7 @@ public class LCPApp implements SceneGraphNode, Interactor {
         factory.use = false;        
         systemClear();
         system.name = filename + " factory";
+        BVNode.maxLeafBlocks = leafBlocks.getValue();
         ImageBlocker blocker = new ImageBlocker( filename, (float) (double) whiteEpsilon.getValue() );
         system.SHinit(blocker.width, blocker.height);
         imageWidth = blocker.width;
@@ -635,6 +596,7 @@ public class LCPApp implements SceneGraphNode, Interactor {
                 } else if ( e.getKeyCode() == KeyEvent.VK_S ) {
                     double dt = stepsize.getValue() / (int)substeps.getValue();
                     for ( int i = 0; i < substeps.getValue(); i++ ) {
+                        system.collisionProcessor.firstSubstep = i == 0;
                         if ( factory.use ) factory.advanceTime( dt );
                         system.advanceTime( dt );                
                     }
@@ -0,0 +1,33 @@
+package comp559.lcp;
+
+/**
+ * Finds the close block pairs of two bounding volume tree leaves from the world
+ * positions of their blocks.  The scalar kernel is always available, while a SIMD
+ * kernel using the incubating Vector API is loaded by reflection when it was compiled
+ * (see the vector folder) and the jdk.incubator.vector module is present.  Both report
+ * the same pairs in the same order, so the choice does not change the simulation.
+ * @author kry
+ */
+public interface LeafKernel {
+
+    /**
+     * Finds the block pairs closer than the given distance, ordered by block of the first
+     * leaf and then by block of the second leaf.
+     * @param x1 world x positions of the blocks of the first body
+     * @param y1 world y positions of the blocks of the first body
+     * @param start1 first block of the first leaf
+     * @param end1 end of the blocks of the first leaf, exclusive
+     * @param x2 world x positions of the blocks of the second body
+     * @param y2 world y positions of the blocks of the second body
+     * @param start2 first block of the second leaf
+     * @param end2 end of the blocks of the second leaf, exclusive
+     * @param d2 squared distance below which a pair is reported
+     * @param hits receives the block indices of each pair, first followed by second,
+     * and must hold all pairs of the two leaves
+     * @return number of pairs found
+     */
+    public int collide( double[] x1, double[] y1, int start1, int end1,
+                        double[] x2, double[] y2, int start2, int end2,
+                        double d2, int[] hits );
+
+}
@@ -0,0 +1,306 @@
+package comp559.lcp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Broad phase over bodies sorted along a Z-order (Morton) curve.  The center of the
+ * root bounding disc of every body is quantized on a grid and its 16 bit cell
+ * coordinates are interleaved into a 32 bit Morton code.  The bodies are radix sorted
+ * by code into a permutation, and the bodies near a given one are found by scanning
+ * the range of codes of the box around it, jumping over the parts of the range that
+ * leave the box with the BIGMIN computation of Tropf and Herzog.
+ * <p>
+ * Bodies much larger than the typical body (e.g., a pinned floor) would force every
+ * query box to grow, so they are kept aside: they query the sorted bodies themselves,
+ * and are tested against each other directly.
+ * @author kry
+ */
+public class MortonSort {
+
+    /** bodies with a root disc radius above this many times the median radius are treated as large */
+    static final double LARGE_FACTOR = 4;
+
+    /** side length of a quantization cell */
+    double quantum = 1;
+
+    /** origin of the quantization grid, the smallest disc center of the current step */
+    private double originX, originY;
+
+    /** number of bodies at the last choice of the quantum */
+    private int numBodies = 0;
+
+    /** radius above which a body is large */
+    private double largeRadius = Double.MAX_VALUE;
+
+    /** largest radius of the bodies which are not large */
+    private double maxSmallRadius = 0;
+
+    /** largest speculative contact margin of the bodies on this step */
+    private double maxMargin = 0;
+
+    /** quantized disc center of each body */
+    private int[] qx = new int[0], qy = new int[0];
+
+    /** Morton codes of the small bodies in sorted order, as unsigned values */
+    private long[] sortedCode = new long[0];
+
+    /** body indices of the small bodies in Morton order */
+    int[] order = new int[0];
+
+    /** number of small bodies in the order */
+    int numSorted = 0;
+
+    /** indices of the large bodies */
+    private int[] large = new int[0];
+
+    private int numLarge = 0;
+
+    /** radix sort scratch */
+    private long[] codeTmp = new long[0];
+    private int[] orderTmp = new int[0];
+    private int[] count = new int[256];
+
+    /**
+     * Forgets the bodies, for instance when the system is cleared
+     */
+    public void clear() {
+        numBodies = 0;
+    }
+
+    /**
+     * Chooses the quantum as the median root disc radius, which is only done when
+     * the number of bodies changes.
+     * @param bodies
+     */
+    private void setup( List<RigidBody> bodies ) {
+        int n = bodies.size();
+        numBodies = n;
+        qx = new int[n];
+        qy = new int[n];
+        sortedCode = new long[n];
+        codeTmp = new long[n];
+        order = new int[n];
+        orderTmp = new int[n];
+        large = new int[n];
+        if ( n == 0 ) return;
+        double[] radii = new double[n];
+        for ( int i = 0; i < n; i++ ) {
+            radii[i] = bodies.get(i).root.boundingDisc.r;
+        }
+        Arrays.sort( radii );
+        quantum = radii[n/2];
+        largeRadius = LARGE_FACTOR * quantum;
+        maxSmallRadius = 0;
+        for ( double r : radii ) {
+            if ( r <= largeRadius ) maxSmallRadius = r;
+        }
+    }
+
+    /**
+     * Quantizes the disc centers and radix sorts the small bodies by Morton code
+     * @param bodies
+     */
+    public void update( List<RigidBody> bodies ) {
+        int n = bodies.size();
+        if ( n != numBodies ) setup( bodies );
+        originX = Double.MAX_VALUE;
+        originY = Double.MAX_VALUE;
+        maxMargin = 0;
+        for ( RigidBody b : bodies ) {
+            Disc d = b.root.boundingDisc;
+            d.updatecW();
+            maxMargin = Math.max( maxMargin, b.margin );
+            originX = Math.min( originX, d.cW.x );
+            originY = Math.min( originY, d.cW.y );
+        }
+        numSorted = 0;
+        numLarge = 0;
+        for ( RigidBody b : bodies ) {
+            Disc d = b.root.boundingDisc;
+            qx[b.index] = quantizeX( d.cW.x );
+            qy[b.index] = quantizeY( d.cW.y );
+            if ( d.r > largeRadius ) {
+                large[numLarge++] = b.index;
+            } else {
+                sortedCode[numSorted] = morton( qx[b.index], qy[b.index] );
+                order[numSorted] = b.index;
+                numSorted++;
+            }
+        }
+        radixSort();
+    }
+
+    private int quantizeX( double x ) {
+        int q = (int) Math.floor( (x - originX) / quantum );
+        return q < 0 ? 0 : ( q > 0xFFFF ? 0xFFFF : q );
+    }
+
+    private int quantizeY( double y ) {
+        int q = (int) Math.floor( (y - originY) / quantum );
+        return q < 0 ? 0 : ( q > 0xFFFF ? 0xFFFF : q );
+    }
+
+    /**
+     * @param v 16 bit value
+     * @return the bits of v spread to the even bit positions
+     */
+    private static long spread( int v ) {
+        long x = v & 0xFFFF;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return the Morton code of the quantized coordinates, x in the even bits and y in the odd bits
+     */
+    static long morton( int x, int y ) {
+        return spread( x ) | ( spread( y ) << 1 );
+    }
+
+    /**
+     * Sorts sortedCode and order in place with four stable 8 bit counting passes, going back
+     * and forth with the scratch arrays
+     */
+    private void radixSort() {
+        long[] srcCode = sortedCode, dstCode = codeTmp;
+        int[] srcOrder = order, dstOrder = orderTmp;
+        for ( int shift = 0; shift < 32; shift += 8 ) {
+            Arrays.fill( count, 0 );
+            for ( int k = 0; k < numSorted; k++ ) {
+                count[(int) (srcCode[k] >>> shift) & 0xFF]++;
+            }
+            int start = 0;
+            for ( int d = 0; d < 256; d++ ) {
+                int c = count[d];
+                count[d] = start;
+                start += c;
+            }
+            for ( int k = 0; k < numSorted; k++ ) {
+                int pos = count[(int) (srcCode[k] >>> shift) & 0xFF]++;
+                dstCode[pos] = srcCode[k];
+                dstOrder[pos] = srcOrder[k];
+            }
+            long[] tc = srcCode; srcCode = dstCode; dstCode = tc;
+            int[] to = srcOrder; srcOrder = dstOrder; dstOrder = to;
+        }
+        // after an even number of passes the result is back in sortedCode and order
+    }
+
+    /**
+     * Finds the overlapping pairs, where at least one body is awake, in Morton order
+     * of the small body, followed by the pairs of the large bodies.  Must be called
+     * after update().
+     * @param bodies
+     * @param out list to which the pairs are added
+     */
+    public void findPairs( List<RigidBody> bodies, PairList out ) {
+        for ( int k = 0; k < numSorted; k++ ) {
+            RigidBody b1 = bodies.get( order[k] );
+            if ( b1.pinned || b1.sleep ) continue;
+            query( bodies, b1, b1.root.boundingDisc.r + b1.margin + maxSmallRadius + maxMargin, false, out );
+        }
+        for ( int k = 0; k < numLarge; k++ ) {
+            RigidBody b1 = bodies.get( large[k] );
+            query( bodies, b1, b1.root.boundingDisc.r + b1.margin + maxSmallRadius + maxMargin, true, out );
+            for ( int m = k+1; m < numLarge; m++ ) {
+                report( b1, bodies.get( large[m] ), out );
+            }
+        }
+    }
+
+    /**
+     * Scans the sorted small bodies with centers in the box of the given half width around
+     * the disc center of b1.  A small awake body reports the pairs with the inactive bodies, and
+     * with the awake bodies of higher index, as those find it too.  A large body reports
+     * all of its pairs.
+     * @param bodies
+     * @param b1
+     * @param extent half width of the box
+     * @param isLarge
+     * @param out
+     */
+    private void query( List<RigidBody> bodies, RigidBody b1, double extent, boolean isLarge, PairList out ) {
+        Disc d = b1.root.boundingDisc;
+        int x0 = quantizeX( d.cW.x - extent );
+        int x1 = quantizeX( d.cW.x + extent );
+        int y0 = quantizeY( d.cW.y - extent );
+        int y1 = quantizeY( d.cW.y + extent );
+        long zmin = morton( x0, y0 );
+        long zmax = morton( x1, y1 );
+        int k = lowerBound( zmin, 0 );
+        while ( k < numSorted && sortedCode[k] <= zmax ) {
+            int j = order[k];
+            if ( qx[j] < x0 || qx[j] > x1 || qy[j] < y0 || qy[j] > y1 ) {
+                // left the box, jump to the next code back inside it
+                k = lowerBound( bigMin( sortedCode[k], zmin, zmax ), k+1 );
+                continue;
+            }
+            k++;
+            if ( j == b1.index ) continue;
+            RigidBody b2 = bodies.get( j );
+            if ( isLarge || b2.pinned || b2.sleep || b1.index < b2.index ) {
+                report( b1, b2, out );
+            }
+        }
+    }
+
+    /**
+     * Adds the pair if at least one body is awake and their root discs intersect
+     */
+    private void report( RigidBody b1, RigidBody b2, PairList out ) {
+        if ( (b1.pinned || b1.sleep) && (b2.pinned || b2.sleep) ) return;
+        if ( ! b1.root.boundingDisc.intersects( b2.root.boundingDisc ) ) return;
+        out.add( b1.index, b2.index );
+    }
+
+    /**
+     * @param code
+     * @param from
+     * @return first position at or after from with a sorted code no less than the given code
+     */
+    private int lowerBound( long code, int from ) {
+        int lo = from, hi = numSorted;
+        while ( lo < hi ) {
+            int mid = (lo + hi) >>> 1;
+            if ( sortedCode[mid] < code ) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Computes the smallest Morton code greater than zval which lies in the box with
+     * corner codes zmin and zmax, for a zval that lies in the code range but outside the box.
+     * @param zval
+     * @param zmin
+     * @param zmax
+     * @return the next code in the box
+     */
+    static long bigMin( long zval, long zmin, long zmax ) {
+        long bigmin = zmax;
+        for ( int bit = 31; bit >= 0; bit-- ) {
+            long mask = 1L << bit;
+            // lower bits of the same dimension as this bit
+            long below = ( 0x55555555L << (bit & 1) ) & ( mask - 1 );
+            boolean v = (zval & mask) != 0;
+            boolean lo = (zmin & mask) != 0;
+            boolean hi = (zmax & mask) != 0;
+            if ( !v && !lo && hi ) {
+                bigmin = ( zmin & ~below ) | mask;
+                zmax = ( zmax & ~mask ) | below;
+            } else if ( !v && lo && hi ) {
+                return zmin;
+            } else if ( v && !lo && !hi ) {
+                return bigmin;
+            } else if ( v && !lo && hi ) {
+                zmin = ( zmin & ~below ) | mask;
+            }
+        }
+        return bigmin;
+    }
+
+}
@@ -0,0 +1,824 @@
+package comp559.lcp;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Point2d;
+import javax.vecmath.Vector2d;
+
+/**
+ * Narrow phase of the collision processor, finding the contacts of candidate body pairs.
+ * All the scratch state of the narrow phase lives here, so the collision processor can
+ * run one of these per worker of the parallel narrow phase, each writing its contacts
+ * to its own buffer.  The parameters and the pair states are read from the collision 
+ * processor.
+ * @author kry
+ */
+public class NarrowPhase {
+
+    /** collision processor whose parameters are used */
+    private CollisionProcessor cp;
+    
+    /** contacts found by this worker, in the order they were created */
+    ArrayList<Contact> contacts;
+    
+    /** 
+     * When true, changes to the sleep flags of bodies and the collision effects on their
+     * colours are recorded to be applied later with applyDeferred, rather than written to
+     * the bodies, as the bodies are shared by the workers of the parallel narrow phase
+     */
+    boolean deferBodyChanges = false;
+    
+    /** bodies whose sleep flag was changed, in order, with the new values */
+    private RigidBody[] sleepBodies = new RigidBody[64];
+    
+    private boolean[] sleepValues = new boolean[64];
+    
+    private int numSleep = 0;
+    
+    /** body pairs whose collision effects were deferred, in order, two entries per pair */
+    private RigidBody[] effectBodies = new RigidBody[64];
+    
+    private int numEffects = 0;
+    
+    /** sum of the speculative contact margins of the bodies of the current pair */
+    private double pairMargin = 0;
+    
+    /**
+     * Creates a narrow phase worker
+     * @param cp collision processor with the parameters and pair states
+     * @param contacts list to which the contacts are added
+     */
+    public NarrowPhase( CollisionProcessor cp, ArrayList<Contact> contacts ) {
+        this.cp = cp;
+        this.contacts = contacts;
+    }
+    
+    /**
+     * Checks for collision between boundary blocks on two rigid bodies.
+     * @param body1
+     * @param body2
+     * @param state traversal state of the pair, or null to look it up in the pair state cache
+     */
+    void narrowPhase( RigidBody body1, RigidBody body2, PairState state ) {
+    	pairMargin = body1.margin + body2.margin;
+    	double kineticEnergyThres = 1e-4;
+        if (body1.getKineticEnergy()*body1.minv >= kineticEnergyThres || body2.getKineticEnergy()*body2.minv >= kineticEnergyThres) {
+
+        	int first = contacts.size();
+        	if ( ! cp.useBVTree.getValue() ) {
+                for ( Block b1 : body1.blocks ) {
+                    for ( Block b2 : body2.blocks ) {
+                        processCollision( body1, b1, body2, b2 );
+                    }
+                }
+            } else if ( cp.useDistanceField.getValue() ) {
+            	distanceFieldDetection( body1, body2 );
+            } else if ( cp.useOccupancyGrid.getValue() ) {
+            	occupancyDetection( body1, body2 );
+            } else {
+            	detection( body1, body2, state );
+            }
+        	// penalty forces are applied as contacts are created, so only reduce for the LCP solve
+        	if ( cp.reduceManifolds.getValue() && cp.doLCP.getValue() ) {
+        		reduceManifold( first );
+        	}
+        	
+        	setSleep( body1, false );
+    		setSleep( body2, false );
+        	} else if (body1.getKineticEnergy()*body1.minv < kineticEnergyThres) {
+        		setSleep( body1, true );
+        	} else if (body2.getKineticEnergy()*body2.minv < kineticEnergyThres) {
+        		setSleep( body2, true );
+        }  
+        
+    } 
+
+    /** cosine of the largest angle between the normal of a contact and the mean normal of its cluster */
+    static final double MANIFOLD_CLUSTER_COS = 0.5;
+    
+    /** cluster of each contact of the pair being reduced, -1 while unassigned */
+    private int[] manifoldCluster = new int[64];
+    
+    /** contacts kept by the manifold reduction */
+    private ArrayList<Contact> manifoldKept = new ArrayList<Contact>();
+    
+    /**
+     * Reduces the contacts of one body pair, those from the given position to the end of 
+     * the contact list.  Block contacts have normals along the block center offsets, which
+     * spread widely around the normal of the touching surfaces, so the contacts are 
+     * clustered around the mean normal of those not yet clustered.  A cluster of more than
+     * three contacts is replaced by contacts at the two extreme points along the tangent of
+     * the cluster and at the deepest point, all with the mean normal of the cluster.
+     * @param first position of the first contact of the pair
+     */
+    private void reduceManifold( int first ) {
+        int count = contacts.size() - first;
+        if ( count <= 3 ) return;
+        if ( manifoldCluster.length < count ) {
+            manifoldCluster = new int[ Math.max( count, 2 * manifoldCluster.length ) ];
+        }
+        Arrays.fill( manifoldCluster, 0, count, -1 );
+        manifoldKept.clear();
+        Vector2d n = new Vector2d();
+        int numClustered = 0;
+        for ( int cluster = 0; numClustered < count; cluster++ ) {
+            n.set( 0, 0 );
+            int seed = -1;
+            for ( int k = 0; k < count; k++ ) {
+                if ( manifoldCluster[k] >= 0 ) continue;
+                if ( seed < 0 ) seed = k;
+                n.add( contacts.get( first + k ).normal );
+            }
+            if ( n.lengthSquared() < 1e-12 ) {
+                // opposite normals cancel out, start from a single contact instead
+                n.set( contacts.get( first + seed ).normal );
+            }
+            n.normalize();
+            int size = 0;
+            for ( int k = 0; k < count; k++ ) {
+                if ( manifoldCluster[k] < 0 && ( k == seed || contacts.get( first + k ).normal.dot( n ) >= MANIFOLD_CLUSTER_COS ) ) {
+                    manifoldCluster[k] = cluster;
+                    size++;
+                }
+            }
+            numClustered += size;
+            if ( size <= 3 ) {
+                for ( int k = 0; k < count; k++ ) {
+                    if ( manifoldCluster[k] == cluster ) manifoldKept.add( contacts.get( first + k ) );
+                }
+                continue;
+            }
+            Contact minT = null, maxT = null, deepest = null;
+            double tmin = Double.MAX_VALUE, tmax = -Double.MAX_VALUE, smin = Double.MAX_VALUE;
+            Vector2d mean = new Vector2d();
+            for ( int k = 0; k < count; k++ ) {
+                if ( manifoldCluster[k] != cluster ) continue;
+                Contact c = contacts.get( first + k );
+                mean.add( c.normal );
+                double t = -n.y * c.contactW.x + n.x * c.contactW.y;
+                if ( t < tmin ) { tmin = t; minT = c; }
+                if ( t > tmax ) { tmax = t; maxT = c; }
+                if ( c.separation < smin ) { smin = c.separation; deepest = c; }
+            }
+            mean.normalize();
+            manifoldKept.add( representative( minT, mean ) );
+            if ( maxT != minT ) manifoldKept.add( representative( maxT, mean ) );
+            if ( deepest != minT && deepest != maxT ) manifoldKept.add( representative( deepest, mean ) );
+        }
+        contacts.subList( first, contacts.size() ).clear();
+        contacts.addAll( manifoldKept );
+    }
+    
+    /**
+     * @param c
+     * @param n
+     * @return a contact at the same point and separation as the given one, with the given normal
+     */
+    private Contact representative( Contact c, Vector2d n ) {
+        Contact r = new Contact( c.body1, c.body2, c.contactW, n );
+        r.separation = c.separation;
+        return r;
+    }
+    
+    /**
+     * Finds the colliding boundary blocks of two bodies with the occupancy grid of the
+     * body with more boundary blocks: the boundary blocks of the other body are mapped 
+     * into its body frame and looked up in the grid, so the cost is linear in the 
+     * boundary of the smaller body.  The same block pairs as the tree traversal are found,
+     * with the same distance test, but in a different order.
+     * @param body1
+     * @param body2
+     */
+    private void occupancyDetection( RigidBody body1, RigidBody body2 ) {
+        boolean swap = body2.bvh.shape.blocks.length > body1.bvh.shape.blocks.length;
+        RigidBody gridBody = swap ? body2 : body1;
+        RigidBody other = swap ? body1 : body2;
+        BVHShape gridShape = gridBody.bvh.shape;
+        BVHShape otherShape = other.bvh.shape;
+        OccupancyGrid grid = gridShape.occupancy;
+        // transformation from the body frame of the other body to that of the grid body 
+        Matrix3d A = gridBody.transformW2B.T;
+        Matrix3d B = other.transformB2W.T;
+        double m00 = A.m00 * B.m00 + A.m01 * B.m10;
+        double m01 = A.m00 * B.m01 + A.m01 * B.m11;
+        double m02 = A.m00 * B.m02 + A.m01 * B.m12 + A.m02;
+        double m10 = A.m10 * B.m00 + A.m11 * B.m10;
+        double m11 = A.m10 * B.m01 + A.m11 * B.m11;
+        double m12 = A.m10 * B.m02 + A.m11 * B.m12 + A.m12;
+        int[] offsets = grid.offsets;
+        boolean awake = false;
+        for ( int k = 0; k < otherShape.blocks.length; k++ ) {
+            double x = m00 * otherShape.bx[k] + m01 * otherShape.by[k] + m02;
+            double y = m10 * otherShape.bx[k] + m11 * otherShape.by[k] + m12;
+            int c = grid.column( x );
+            int r = grid.row( y );
+            if ( ! grid.isNear( c, r ) ) continue;
+            for ( int o = 0; o < offsets.length; o += 2 ) {
+                int g = grid.blockAt( c + offsets[o], r + offsets[o+1] );
+                if ( g < 0 ) continue;
+                if ( ! awake ) {
+                    collisionEffects( body1, body2 );
+                    if ( ! wakePair( body1, body2 ) ) return;
+                    awake = true;
+                }
+                Block b1 = swap ? otherShape.blocks[k] : gridShape.blocks[g];
+                Block b2 = swap ? gridShape.blocks[g] : otherShape.blocks[k];
+                body1.transformB2W.transform( b1.pB, tmp1 );
+                body2.transformB2W.transform( b2.pB, tmp2 );
+                double distance = tmp1.distance( tmp2 );
+                if ( distance < Block.radius * 2 ) {
+                    addContact( body1, body2, distance );
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates contacts for the boundary blocks of the body with fewer of them that are
+     * close to the other body, using the signed distance field of the other body.  This 
+     * gives one contact per block, with the normal given by the gradient of the field, 
+     * rather than one per close block pair.  The block center to surface pixel center 
+     * distance is used in place of the block center distance, so bodies rest at the same 
+     * separation as with block pairs.
+     * @param body1
+     * @param body2
+     */
+    private void distanceFieldDetection( RigidBody body1, RigidBody body2 ) {
+        boolean swap = body2.bvh.shape.blocks.length > body1.bvh.shape.blocks.length;
+        RigidBody fieldBody = swap ? body2 : body1;
+        RigidBody other = swap ? body1 : body2;
+        DistanceField field = fieldBody.bvh.shape.distanceField;
+        BVHShape otherShape = other.bvh.shape;
+        // transformation from the body frame of the other body to that of the field body 
+        Matrix3d A = fieldBody.transformW2B.T;
+        Matrix3d B = other.transformB2W.T;
+        double m00 = A.m00 * B.m00 + A.m01 * B.m10;
+        double m01 = A.m00 * B.m01 + A.m01 * B.m11;
+        double m02 = A.m00 * B.m02 + A.m01 * B.m12 + A.m02;
+        double m10 = A.m10 * B.m00 + A.m11 * B.m10;
+        double m11 = A.m10 * B.m01 + A.m11 * B.m11;
+        double m12 = A.m10 * B.m02 + A.m11 * B.m12 + A.m12;
+        Matrix3d R = fieldBody.transformB2W.T;
+        double d = Block.radius * 2;
+        boolean awake = false;
+        for ( int k = 0; k < otherShape.blocks.length; k++ ) {
+            double x = m00 * otherShape.bx[k] + m01 * otherShape.by[k] + m02;
+            double y = m10 * otherShape.bx[k] + m11 * otherShape.by[k] + m12;
+            double distance = field.distance( x, y, gradient ) + 0.5;
+            if ( distance >= d + pairMargin ) continue;
+            double len = Math.sqrt( gradient[0]*gradient[0] + gradient[1]*gradient[1] );
+            if ( len < 1e-9 ) continue; // on a ridge of the field, no direction to push
+            if ( ! awake ) {
+                collisionEffects( body1, body2 );
+                if ( ! wakePair( body1, body2 ) ) return;
+                awake = true;
+            }
+            // outward normal of the field body in world coordinates
+            double nx = ( R.m00 * gradient[0] + R.m01 * gradient[1] ) / len;
+            double ny = ( R.m10 * gradient[0] + R.m11 * gradient[1] ) / len;
+            other.transformB2W.transform( otherShape.blocks[k].pB, tmp1 );
+            contactW.set( tmp1.x - nx * distance / 2, tmp1.y - ny * distance / 2 );
+            if ( swap ) {
+                normal.set( -nx, -ny );
+            } else {
+                normal.set( nx, ny );
+            }
+            createContact( body1, body2, distance );
+        }
+    }
+    
+    /** gradient of the distance field at the last sample */
+    private double[] gradient = new double[2];
+    
+    /** reusable stack of node pairs for the bounding volume tree traversal */
+    private int[] bvStack = new int[64];
+    
+    /** front being built by the current traversal */
+    private int[] newFront = new int[64];
+    
+    private int newFrontSize = 0;
+    
+    /** true when the oriented boxes of the nodes are tested as well as their discs */
+    private boolean useBoxes = false;
+    
+    /** true when node and block pairs whose normal cones cannot face each other are skipped */
+    private boolean useCones = false;
+    
+    /** number of bounding volume node pair tests done by this worker since the counters were reset */
+    int nodeTests = 0;
+    
+    /** number of body pairs whose tree traversal was skipped by conservative advancement since the counters were reset */
+    int skippedPairs = 0;
+    
+    /** number of body pairs rejected by the separating axis test of their hulls since the counters were reset */
+    int hullRejects = 0;
+    
+    /**
+     * Finds the colliding leaf blocks of two bodies by traversing their flattened bounding 
+     * volume trees together.  With the BVTT front cache, the traversal starts from the front
+     * where the traversal of the previous step stopped, otherwise it starts from the roots.
+     * With conservative advancement, the traversal is skipped while the bodies have not 
+     * travelled far enough since the last traversal to close the gap it found between them.
+     * @param body1
+     * @param body2
+     * @param state traversal state of the pair, or null to look it up in the pair state cache
+     */
+    public void detection( RigidBody body1, RigidBody body2, PairState state ) {
+    	useBoxes = cp.useOrientedBoxes.getValue();
+    	useCones = cp.useNormalCones.getValue();
+    	boolean useFront = cp.useBVTTFront.getValue();
+    	boolean useAdvance = cp.useConservativeAdvancement.getValue();
+    	boolean useHulls = cp.useHullReject.getValue();
+    	if ( ! useFront && ! useAdvance ) {
+    		if ( useHulls && hullGap( body1, body2 ) > pairMargin ) {
+    			hullRejects++;
+    			return;
+    		}
+    		traverse( body1, body2, 0, 0, false );
+    		return;
+    	}
+    	if ( state == null ) {
+    		state = cp.pairStates.get( PairStateCache.key( body1, body2 ) );
+    	}
+    	state.lastVisit = cp.visitID;
+    	if ( useAdvance && state.gap > 0 ) {
+    		double travel = ( body1.travel - state.travel1 ) + ( body2.travel - state.travel2 );
+    		if ( travel + pairMargin < state.gap ) {
+    			skippedPairs++;
+    			return;
+    		}
+    	}
+    	if ( useHulls ) {
+    		// the front is kept for when the hulls come close again
+    		double gap = hullGap( body1, body2 );
+    		if ( gap > pairMargin ) {
+    			hullRejects++;
+    			if ( useAdvance ) {
+    				state.gap = gap;
+    				state.travel1 = body1.travel;
+    				state.travel2 = body2.travel;
+    			}
+    			return;
+    		}
+    	}
+    	newFrontSize = 0;
+    	if ( ! useFront || state.size == 0 ) {
+    		traverse( body1, body2, 0, 0, true );
+    	} else {
+    		int[] front = state.front;
+    		for ( int k = 0; k < state.size; ) {
+    			k += coarsen( body1, body2, front, k, state.size );
+    		}
+    	}
+    	if ( useAdvance ) {
+    		state.gap = frontGap( body1.bvh, body2.bvh );
+    		state.travel1 = body1.travel;
+    		state.travel2 = body2.travel;
+    	}
+    	if ( useFront ) {
+    		if ( state.front.length < newFrontSize * 2 ) {
+    			state.front = new int[newFront.length];
+    		}
+    		System.arraycopy( newFront, 0, state.front, 0, newFrontSize * 2 );
+    		state.size = newFrontSize;
+    	}
+    }
+    
+    /**
+     * Computes a lower bound on the distance between the blocks of two bodies from the 
+     * separating axis test of their convex hulls.  The separation of the hulls of the block 
+     * centers along an edge normal is at most the distance between the centers, and blocks
+     * touch when their centers are closer than 2 Block.radius.
+     * @param body1
+     * @param body2
+     * @return the gap between the blocks, zero or negative if the hulls are close
+     */
+    private double hullGap( RigidBody body1, RigidBody body2 ) {
+    	ConvexHull h1 = body1.hull;
+    	ConvexHull h2 = body2.hull;
+    	int m = Math.max( h1.size, h2.size );
+    	if ( hullX.length < m ) {
+    		hullX = new double[ Math.max( m, 2 * hullX.length ) ];
+    		hullY = new double[hullX.length];
+    	}
+    	// transformation from the body frame of the second body to that of the first
+    	Matrix3d A = body1.transformW2B.T;
+    	Matrix3d B = body2.transformB2W.T;
+    	double m00 = A.m00 * B.m00 + A.m01 * B.m10;
+    	double m01 = A.m00 * B.m01 + A.m01 * B.m11;
+    	double m02 = A.m00 * B.m02 + A.m01 * B.m12 + A.m02;
+    	double m10 = A.m10 * B.m00 + A.m11 * B.m10;
+    	double m11 = A.m10 * B.m01 + A.m11 * B.m11;
+    	double m12 = A.m10 * B.m02 + A.m11 * B.m12 + A.m12;
+    	double d = Block.radius * 2;
+    	double sep = h1.separation( h2, m00, m01, m02, m10, m11, m12, hullX, hullY );
+    	if ( sep < d ) {
+    		// the inverse, a transposed rotation
+    		sep = Math.max( sep, h2.separation( h1, m00, m10, -( m00 * m02 + m10 * m12 ), m01, m11, -( m01 * m02 + m11 * m12 ), hullX, hullY ) );
+    	}
+    	return sep - d;
+    }
+    
+    /** hull vertices of the other body of a pair mapped into the frame of the first */
+    private double[] hullX = new double[32], hullY = new double[32];
+    
+    /**
+     * Computes a lower bound on the distance between the blocks of two bodies from the new
+     * front, which covers all the leaf pairs, and whose discs were all updated by the traversal.
+     * @param t1
+     * @param t2
+     * @return the smallest gap between the discs of the front, or zero if some intersect
+     */
+    private double frontGap( FlatBVH t1, FlatBVH t2 ) {
+    	double gap = Double.MAX_VALUE;
+    	for ( int k = 0; k < newFrontSize; k++ ) {
+    		int n1 = newFront[2*k];
+    		int n2 = newFront[2*k+1];
+    		double g = t1.gap( n1, t2, n2 );
+    		if ( useBoxes ) g = Math.max( g, t1.boxGap( n1, t2, n2 ) );
+    		gap = Math.min( gap, g );
+    		if ( gap <= 0 ) return 0;
+    	}
+    	return gap;
+    }
+    
+    /**
+     * Updates the front from the node pair at position k.  When the node pairs starting at k 
+     * are all the children of a node pair of the bounding volume test tree, and they and 
+     * their parent are all separated, the parent replaces them in the new front.  Otherwise
+     * the traversal continues from the node pair at k, which refines the front where discs 
+     * intersect.  The parent of a node pair descends both nodes when they have the same depth,
+     * and only the deepest otherwise, as the traversal only descends one node once the other
+     * is a leaf.
+     * @param body1
+     * @param body2
+     * @param front
+     * @param k
+     * @param size
+     * @return the number of front node pairs consumed
+     */
+    private int coarsen( RigidBody body1, RigidBody body2, int[] front, int k, int size ) {
+    	FlatBVH t1 = body1.bvh;
+    	FlatBVH t2 = body2.bvh;
+    	BVHShape s1 = t1.shape;
+    	BVHShape s2 = t2.shape;
+    	int n1 = front[2*k];
+    	int n2 = front[2*k+1];
+    	int p1 = n1, p2 = n2;
+    	if ( s1.depth[n1] >= s2.depth[n2] ) p1 = s1.parent[n1];
+    	if ( s2.depth[n2] >= s1.depth[n1] ) p2 = s2.parent[n2];
+    	boolean group = p1 >= 0 && p2 >= 0;
+    	int count = 0;
+    	if ( group ) {
+    		count = ( p1 == n1 || p2 == n2 ) ? 2 : 4;
+    		group = k + count <= size;
+    	}
+    	// the node pairs must be the children of the parent, in traversal order
+    	for ( int c = 0; group && c < count; c++ ) {
+    		int c1, c2;
+    		if ( count == 4 ) {
+    			c1 = c < 2 ? s1.child1[p1] : s1.child2[p1];
+    			c2 = c % 2 == 0 ? s2.child1[p2] : s2.child2[p2];
+    		} else if ( p1 == n1 ) {
+    			c1 = p1;
+    			c2 = c == 0 ? s2.child1[p2] : s2.child2[p2];
+    		} else {
+    			c1 = c == 0 ? s1.child1[p1] : s1.child2[p1];
+    			c2 = p2;
+    		}
+    		group = front[2*(k+c)] == c1 && front[2*(k+c)+1] == c2;
+    	}
+    	if ( ! group ) {
+    		traverse( body1, body2, n1, n2, true );
+    		return 1;
+    	}
+    	for ( int c = 0; c < count; c++ ) {
+    		int c1 = front[2*(k+c)];
+    		int c2 = front[2*(k+c)+1];
+    		t1.visit( c1, cp.visitID );
+    		t2.visit( c2, cp.visitID );
+    		if ( overlaps( t1, c1, t2, c2 ) ) {
+    			// the separated children before it stay in the front
+    			for ( int e = 0; e < c; e++ ) {
+    				addToFront( front[2*(k+e)], front[2*(k+e)+1] );
+    			}
+    			traverse( body1, body2, c1, c2, true );
+    			return c + 1;
+    		}
+    	}
+    	t1.visit( p1, cp.visitID );
+    	t2.visit( p2, cp.visitID );
+    	if ( overlaps( t1, p1, t2, p2 ) ) {
+    		for ( int c = 0; c < count; c++ ) {
+    			addToFront( front[2*(k+c)], front[2*(k+c)+1] );
+    		}
+    	} else {
+    		addToFront( p1, p2 );
+    	}
+    	return count;
+    }
+    
+    /**
+     * Tests a node pair, counting the test.  The bounding discs are tested first, and with
+     * oriented boxes the boxes of the nodes are only tested when the discs intersect.
+     * With normal cones, node pairs whose blocks cannot face each other are rejected.
+     * @param t1
+     * @param n1
+     * @param t2
+     * @param n2
+     * @return true if the bounding volumes of the nodes intersect
+     */
+    private boolean overlaps( FlatBVH t1, int n1, FlatBVH t2, int n2 ) {
+    	nodeTests++;
+    	if ( ! t1.intersects( n1, t2, n2 ) ) return false;
+    	if ( useBoxes && t1.boxGap( n1, t2, n2 ) >= pairMargin ) return false;
+    	return ! useCones || t1.conesFace( n1, t2, n2 );
+    }
+    
+    private void addToFront( int n1, int n2 ) {
+    	if ( 2 * newFrontSize + 2 > newFront.length ) {
+    		newFront = Arrays.copyOf( newFront, newFront.length * 2 );
+    	}
+    	newFront[2*newFrontSize] = n1;
+    	newFront[2*newFrontSize+1] = n2;
+    	newFrontSize++;
+    }
+    
+    /**
+     * Traverses the bounding volume test tree below the given node pair, with an explicit,
+     * reusable stack of node pairs.  Children are visited in the same order as a recursive 
+     * traversal would, so contacts are created in the same order.
+     * @param body1
+     * @param body2
+     * @param start1 node of the first body to start from
+     * @param start2 node of the second body to start from
+     * @param record true to add the node pairs where the descent stops to the new front
+     */
+    private void traverse( RigidBody body1, RigidBody body2, int start1, int start2, boolean record ) {
+    	FlatBVH t1 = body1.bvh;
+    	FlatBVH t2 = body2.bvh;
+    	BVHShape s1 = t1.shape;
+    	BVHShape s2 = t2.shape;
+    	int sp = 0;
+    	bvStack[sp++] = start1;
+    	bvStack[sp++] = start2;
+    	while ( sp > 0 ) {
+    		int n2 = bvStack[--sp];
+    		int n1 = bvStack[--sp];
+    		t1.visit( n1, cp.visitID );
+    		t2.visit( n2, cp.visitID );
+    		if ( ! overlaps( t1, n1, t2, n2 ) ) {
+    			if ( record ) addToFront( n1, n2 );
+    			continue;
+    		}
+    		if ( sp + 8 > bvStack.length ) {
+    			bvStack = Arrays.copyOf( bvStack, bvStack.length * 2 );
+    		}
+    		boolean leaf1 = s1.isLeaf( n1 );
+    		boolean leaf2 = s2.isLeaf( n2 );
+    		// pairs are pushed in reverse so that they are popped in order
+    		if ( leaf1 && leaf2 ) {
+    			processLeafCollision( body1, n1, body2, n2 );
+    			if ( record ) addToFront( n1, n2 );
+    		} else if ( leaf1 ) {
+    			bvStack[sp++] = n1; bvStack[sp++] = s2.child2[n2];
+    			bvStack[sp++] = n1; bvStack[sp++] = s2.child1[n2];
+    		} else if ( leaf2 ) {
+    			bvStack[sp++] = s1.child2[n1]; bvStack[sp++] = n2;
+    			bvStack[sp++] = s1.child1[n1]; bvStack[sp++] = n2;
+    		} else {
+    			bvStack[sp++] = s1.child2[n1]; bvStack[sp++] = s2.child2[n2];
+    			bvStack[sp++] = s1.child2[n1]; bvStack[sp++] = s2.child1[n2];
+    			bvStack[sp++] = s1.child1[n1]; bvStack[sp++] = s2.child2[n2];
+    			bvStack[sp++] = s1.child1[n1]; bvStack[sp++] = s2.child1[n2];
+    		}
+    	}
+    }
+    
+
+    // some working variables for processing collisions
+    private Point2d tmp1 = new Point2d();
+    private Point2d tmp2 = new Point2d();
+    private Point2d contactW = new Point2d();
+    private Vector2d force = new Vector2d();
+    private Vector2d contactV1 = new Vector2d();
+    private Vector2d contactV2 = new Vector2d();
+    private Vector2d relativeVelocity = new Vector2d();
+    private Vector2d normal = new Vector2d();
+        
+    /**
+     * Processes a collision between two bodies for two given blocks that are colliding.
+     * Currently this implements a penalty force
+     * @param body1
+     * @param b1
+     * @param body2
+     * @param b2
+     */
+    private void processCollision( RigidBody body1, Block b1, RigidBody body2, Block b2 ) {        
+        collisionEffects( body1, body2 );
+        if ( ! wakePair( body1, body2 ) ) return;
+        body1.transformB2W.transform(b1.pB, tmp1);
+        body2.transformB2W.transform(b2.pB, tmp2);
+        double distance = tmp1.distance(tmp2);
+        if ( distance < Block.radius * 2 + pairMargin ) {
+            addContact( body1, body2, distance );
+        }
+    }
+    
+    /**
+     * Processes the collisions between the blocks of two leaves of the bounding volume trees
+     * of two bodies.  The close block pairs are found by a leaf kernel from the world positions 
+     * of the blocks of both leaves.
+     * @param body1
+     * @param n1 leaf of the first body
+     * @param body2
+     * @param n2 leaf of the second body
+     */
+    private void processLeafCollision( RigidBody body1, int n1, RigidBody body2, int n2 ) {
+        collisionEffects( body1, body2 );
+        if ( ! wakePair( body1, body2 ) ) return;
+        FlatBVH t1 = body1.bvh;
+        FlatBVH t2 = body2.bvh;
+        t1.updateBlocks( n1, cp.visitID );
+        t2.updateBlocks( n2, cp.visitID );
+        double[] x1 = t1.bWx, y1 = t1.bWy;
+        double[] x2 = t2.bWx, y2 = t2.bWy;
+        int start1 = t1.shape.leafStart[n1];
+        int end1 = start1 + t1.shape.leafCount[n1];
+        int start2 = t2.shape.leafStart[n2];
+        int end2 = start2 + t2.shape.leafCount[n2];
+        int maxHits = 2 * ( end1 - start1 ) * ( end2 - start2 );
+        if ( leafHits.length < maxHits ) {
+            leafHits = new int[ Math.max( maxHits, 2 * leafHits.length ) ];
+        }
+        LeafKernel kernel = scalarKernel;
+        if ( cp.useVectorKernel.getValue() ) {
+            if ( ! vectorKernelLoaded ) {
+                vectorKernel = ScalarLeafKernel.getVectorKernel();
+                vectorKernelLoaded = true;
+            }
+            if ( vectorKernel != null ) kernel = vectorKernel;
+        }
+        double d = Block.radius * 2 + pairMargin;
+        int numHits = kernel.collide( x1, y1, start1, end1, x2, y2, start2, end2, d * d, leafHits );
+        for ( int h = 0; h < numHits; h++ ) {
+            int i = leafHits[2*h];
+            int j = leafHits[2*h+1];
+            tmp1.set( x1[i], y1[i] );
+            tmp2.set( x2[j], y2[j] );
+            double distance = tmp1.distance(tmp2);
+            if ( distance < d ) {
+                if ( useCones && ! t1.blocksFace( i, t2, j, tmp2.x - tmp1.x, tmp2.y - tmp1.y, distance ) ) continue;
+                addContact( body1, body2, distance );
+            }
+        }
+    }
+    
+    /** kernel finding the close block pairs of two leaves */
+    private LeafKernel scalarKernel = new ScalarLeafKernel();
+    
+    /** SIMD kernel, looked up once per worker as the lookup is synchronized */
+    private LeafKernel vectorKernel = null;
+    
+    private boolean vectorKernelLoaded = false;
+    
+    /** block index pairs found by the leaf kernel */
+    private int[] leafHits = new int[32];
+
+    /**
+     * Wakes both bodies if either has enough kinetic energy for their blocks to be tested,
+     * otherwise puts the first body to sleep.
+     * @param body1
+     * @param body2
+     * @return true if the blocks of the bodies need to be tested
+     */
+    private boolean wakePair( RigidBody body1, RigidBody body2 ) {
+        double kineticEnergyThres = 1e-4;
+        if (body1.getKineticEnergy() >= kineticEnergyThres || body2.getKineticEnergy() >= kineticEnergyThres) {
+            setSleep( body1, false );
+            setSleep( body2, false );
+            return true;
+        }
+        setSleep( body1, true );
+        return false;
+    }
+    
+    /**
+     * Creates a contact between the block positions in tmp1 and tmp2
+     * @param body1
+     * @param body2
+     * @param distance between the block centers
+     */
+    private void addContact( RigidBody body1, RigidBody body2, double distance ) {
+        // contact point at halfway between points 
+        // NOTE: this assumes that the two blocks have the same radius!
+        contactW.interpolate( tmp1, tmp2, .5 );
+        // contact normal
+        normal.sub( tmp2, tmp1 );
+        normal.normalize();
+        createContact( body1, body2, distance );
+    }
+    
+    /**
+     * Creates a contact at contactW with the given normal, and applies the penalty 
+     * forces when the LCP solve is not used.
+     * @param body1
+     * @param body2
+     * @param distance between the blocks, at which the penalty force vanishes at 2 Block.radius
+     */
+    private void createContact( RigidBody body1, RigidBody body2, double distance ) {
+        double k = cp.contactSpringStiffness.getValue();
+        double c1 = cp.contactSpringDamping.getValue();
+        double threshold = cp.separationVelocityThreshold.getValue();
+        boolean useSpring = cp.enableContactSpring.getValue();
+        boolean useDamping = cp.enableContactDamping.getValue();
+        // create the contact
+        Contact contact = new Contact( body1, body2, contactW, normal);
+        contact.separation = distance - Block.radius * 2;
+        // simple option... add to contact list...
+        contacts.add( contact );
+        if ( ! cp.doLCP.getValue()) {
+            // compute relative body velocity at contact point
+            body1.getSpatialVelocity( contactW, contactV1 );
+            body2.getSpatialVelocity( contactW, contactV2 );
+            relativeVelocity.sub( contactV1, contactV2 );
+            if ( -relativeVelocity.dot( normal ) < threshold ) {
+                if ( useSpring ) {
+                    // spring force
+                    double interpenetration = distance - Block.radius * 2; // a negative quantity
+                    force.scale( -interpenetration * k, normal );
+                    body2.applyContactForceW(contactW, force);
+                    force.scale(-1);
+                    body1.applyContactForceW(contactW, force);
+                }
+                if ( useDamping ) {
+                    // spring damping forces!
+                    // vertical
+                    force.scale( relativeVelocity.dot(normal) * c1, normal );                    
+                    body2.applyContactForceW( contactW, force );
+                    force.scale(-1);
+                    body1.applyContactForceW( contactW, force );
+                }
+            }
+        }
+    }    
+    /**
+     * Applies the collision effects of the collision processor to a pair of bodies, or 
+     * records the pair when body changes are deferred.  A pair recorded just before is not 
+     * recorded again, as the effects only keep the colours of the last call.
+     * @param body1
+     * @param body2
+     */
+    private void collisionEffects( RigidBody body1, RigidBody body2 ) {
+        if ( ! deferBodyChanges ) {
+            cp.collisionEffects( body1, body2 );
+            return;
+        }
+        if ( ! cp.hasCollisionEffects() ) return;
+        if ( numEffects > 0 && effectBodies[numEffects-2] == body1 && effectBodies[numEffects-1] == body2 ) return;
+        if ( numEffects == effectBodies.length ) {
+            effectBodies = Arrays.copyOf( effectBodies, numEffects * 2 );
+        }
+        effectBodies[numEffects++] = body1;
+        effectBodies[numEffects++] = body2;
+    }
+    
+    /**
+     * Sets the sleep flag of a body, or records it when body changes are deferred
+     * @param body
+     * @param sleep
+     */
+    private void setSleep( RigidBody body, boolean sleep ) {
+        if ( ! deferBodyChanges ) {
+            body.sleep = sleep;
+            return;
+        }
+        if ( numSleep == sleepBodies.length ) {
+            sleepBodies = Arrays.copyOf( sleepBodies, numSleep * 2 );
+            sleepValues = Arrays.copyOf( sleepValues, numSleep * 2 );
+        }
+        sleepBodies[numSleep] = body;
+        sleepValues[numSleep] = sleep;
+        numSleep++;
+    }
+    
+    /**
+     * Applies the recorded collision effects and writes the recorded sleep flag changes 
+     * to the bodies, in the order they were made
+     */
+    void applyDeferred() {
+        for ( int k = 0; k < numEffects; k += 2 ) {
+            cp.collisionEffects( effectBodies[k], effectBodies[k+1] );
+            effectBodies[k] = null;
+            effectBodies[k+1] = null;
+        }
+        numEffects = 0;
+        for ( int k = 0; k < numSleep; k++ ) {
+            sleepBodies[k].sleep = sleepValues[k];
+            sleepBodies[k] = null;
+        }
+        numSleep = 0;
+    }
+    
+}
@@ -0,0 +1,96 @@
+package comp559.lcp;
+
+/**
+ * Helpers for cones of outward normal directions in 2D, given by the angle of their axis
+ * and their half angle.  A cone with a half angle of at least PI contains all directions.
+ * @author kry
+ */
+public class NormalCone {
+
+    /** 
+     * Widening of the cone of the directions to the outside neighbours of a pixel, the 
+     * angle between two neighbours, as blocks of other bodies touching a block can be in
+     * any direction between its outside neighbours
+     */
+    static final double WIDEN = Math.PI / 4;
+
+    /** half angle of the cone of all directions */
+    static final double FULL = Math.PI;
+
+    /** column and row offsets of the 8 neighbours of a pixel, in counter clockwise order */
+    static final int[] NEIGHBOUR_DJ = { 1, 1, 0, -1, -1, -1, 0, 1 };
+    static final int[] NEIGHBOUR_DI = { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+    /**
+     * Computes the cone of the directions to the outside neighbours of a pixel, widened by
+     * WIDEN.  The cone is the complement of the largest gap between outside neighbours.
+     * @param outside for each neighbour in the order of NEIGHBOUR_DJ and NEIGHBOUR_DI
+     * @param out receives the axis angle and the half angle
+     */
+    static void ofNeighbours( boolean[] outside, double[] out ) {
+        int first = -1;
+        for ( int k = 0; k < 8; k++ ) {
+            if ( outside[k] ) { first = k; break; }
+        }
+        if ( first < 0 ) {
+            out[0] = 0;
+            out[1] = FULL;
+            return;
+        }
+        // largest number of steps from one outside neighbour to the next, going around
+        int gap = 0, gapEnd = first;
+        for ( int k = 1; k <= 8; k++ ) {
+            int n = ( first + k ) % 8;
+            if ( ! outside[n] ) continue;
+            int steps = k - lastBefore( outside, first, k );
+            if ( steps > gap ) { gap = steps; gapEnd = n; }
+        }
+        double step = Math.PI / 4;
+        double span = ( 8 - gap ) * step;
+        // the cone runs counter clockwise from the end of the gap
+        out[0] = angle( gapEnd ) + span / 2;
+        out[1] = Math.min( FULL, span / 2 + WIDEN );
+    }
+
+    /**
+     * @return the number of steps from first to the last outside neighbour before step k
+     */
+    private static int lastBefore( boolean[] outside, int first, int k ) {
+        for ( int j = k - 1; j > 0; j-- ) {
+            if ( outside[( first + j ) % 8] ) return j;
+        }
+        return 0;
+    }
+
+    /**
+     * @param k neighbour index
+     * @return angle of the direction to the neighbour in body coordinates, x along columns and y along rows
+     */
+    static double angle( int k ) {
+        return Math.atan2( NEIGHBOUR_DI[k], NEIGHBOUR_DJ[k] );
+    }
+
+    /**
+     * Computes a cone containing two cones
+     * @param a1 axis angle of the first cone
+     * @param h1 half angle of the first cone
+     * @param a2
+     * @param h2
+     * @param out receives the axis angle and the half angle
+     */
+    static void union( double a1, double h1, double a2, double h2, double[] out ) {
+        double d = Math.IEEEremainder( a2 - a1, 2 * Math.PI );
+        if ( Math.abs( d ) + h2 <= h1 ) {
+            out[0] = a1;
+            out[1] = h1;
+        } else if ( Math.abs( d ) + h1 <= h2 ) {
+            out[0] = a2;
+            out[1] = h2;
+        } else {
+            double h = ( h1 + h2 + Math.abs( d ) ) / 2;
+            out[0] = a1 + Math.signum( d ) * ( h - h1 );
+            out[1] = Math.min( FULL, h );
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+/**
+ * Pixel grid of the boundary blocks of a body shape, in body coordinates.  Each pixel
+ * stores the index of its block in the block order of the shape, or -1, and a bitmap
+ * marks the pixels near enough to a block for a block centered in that pixel to touch it.
+ * A point of another body mapped into the body frame is then checked with one bitmap
+ * lookup, and only near points scan the few pixels around them for blocks.
+ * Blocks are on the integer pixel lattice of the image, shifted by the center of mass.
+ * @author kry
+ */
+public class OccupancyGrid {
+
+    /** column and row of the pixel (0,0) of the grid */
+    final int col0, row0;
+
+    /** size of the grid in pixels, including a border of REACH pixels */
+    final int cols, rows;
+
+    /** body frame position of the center of the pixel at column 0 and row 0 of the image */
+    final double offsetX, offsetY;
+
+    /** block index at each pixel, -1 for pixels without a boundary block */
+    final int[] pixelBlock;
+
+    /** one bit per pixel, set when the pixel is within reach of a block */
+    final long[] near;
+
+    /** pixel offsets, as dx and dy pairs, that can hold a block touching a point in the center pixel */
+    final int[] offsets;
+
+    /**
+     * Largest offset in pixels from the pixel containing a point to the pixel of a block
+     * touching it: the blocks touch at less than 2 Block.radius, and the point is at most
+     * half a pixel from its pixel center in each direction
+     */
+    static final int REACH = (int) Math.floor( 2 * Block.radius + 0.5 );
+
+    /**
+     * Builds the grid of the given blocks
+     * @param blocks in the block order of the shape
+     */
+    public OccupancyGrid( Block[] blocks ) {
+        int minCol = Integer.MAX_VALUE, minRow = Integer.MAX_VALUE;
+        int maxCol = Integer.MIN_VALUE, maxRow = Integer.MIN_VALUE;
+        for ( Block b : blocks ) {
+            minCol = Math.min( minCol, b.j );
+            minRow = Math.min( minRow, b.i );
+            maxCol = Math.max( maxCol, b.j );
+            maxRow = Math.max( maxRow, b.i );
+        }
+        col0 = minCol - REACH;
+        row0 = minRow - REACH;
+        cols = maxCol - minCol + 1 + 2 * REACH;
+        rows = maxRow - minRow + 1 + 2 * REACH;
+        offsetX = blocks[0].pB.x - blocks[0].j;
+        offsetY = blocks[0].pB.y - blocks[0].i;
+        // pixel offsets within the distance of a touching block from a point in the center pixel
+        double reach = 2 * Block.radius + Math.sqrt( 0.5 );
+        int count = 0;
+        int[] tmp = new int[2 * (2*REACH+1) * (2*REACH+1)];
+        for ( int dy = -REACH; dy <= REACH; dy++ ) {
+            for ( int dx = -REACH; dx <= REACH; dx++ ) {
+                if ( dx*dx + dy*dy < reach * reach ) {
+                    tmp[count++] = dx;
+                    tmp[count++] = dy;
+                }
+            }
+        }
+        offsets = new int[count];
+        System.arraycopy( tmp, 0, offsets, 0, count );
+        pixelBlock = new int[cols * rows];
+        Arrays.fill( pixelBlock, -1 );
+        near = new long[( cols * rows + 63 ) / 64];
+        for ( int k = 0; k < blocks.length; k++ ) {
+            int c = blocks[k].j - col0;
+            int r = blocks[k].i - row0;
+            pixelBlock[r * cols + c] = k;
+            for ( int o = 0; o < offsets.length; o += 2 ) {
+                // the pixels from which this block is reachable
+                int p = ( r - offsets[o+1] ) * cols + ( c - offsets[o] );
+                near[p >> 6] |= 1L << p;
+            }
+        }
+    }
+
+    /**
+     * @param x body frame x coordinate
+     * @return grid column of the pixel containing the point
+     */
+    int column( double x ) {
+        return (int) Math.floor( x - offsetX + 0.5 ) - col0;
+    }
+
+    /**
+     * @param y body frame y coordinate
+     * @return grid row of the pixel containing the point
+     */
+    int row( double y ) {
+        return (int) Math.floor( y - offsetY + 0.5 ) - row0;
+    }
+
+    /**
+     * @param c grid column, possibly outside the grid
+     * @param r grid row, possibly outside the grid
+     * @return true if a block centered in this pixel can touch a block of the shape
+     */
+    boolean isNear( int c, int r ) {
+        if ( c < 0 || r < 0 || c >= cols || r >= rows ) return false;
+        int p = r * cols + c;
+        return ( near[p >> 6] & ( 1L << p ) ) != 0;
+    }
+
+    /**
+     * @param c grid column, possibly outside the grid
+     * @param r grid row, possibly outside the grid
+     * @return the block index at this pixel, or -1
+     */
+    int blockAt( int c, int r ) {
+        if ( c < 0 || r < 0 || c >= cols || r >= rows ) return -1;
+        return pixelBlock[r * cols + c];
+    }
+
+}
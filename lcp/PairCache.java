@@ -0,0 +1,208 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+/**
+ * Persistent set of overlapping body pairs for the broad phase.  A pair is stored as
+ * a long key built from the two body indices, in an open addressing hash table with
+ * linear probing, and the pairs are also kept in a dense list for iteration.
+ * Pairs added and removed since the last call to beginStep() are recorded so that
+ * the pair begin and pair end transitions can be reported.
+ * @author kry
+ */
+public class PairCache {
+
+    private static final long EMPTY = -1;
+
+    /** hash table of pair keys, EMPTY for a free slot */
+    private long[] table;
+
+    /** position in the dense list of the key in each slot */
+    private int[] tableIndex;
+
+    private int mask;
+
+    /** dense list of the pair keys */
+    private long[] list = new long[64];
+
+    private int size = 0;
+
+    /** pairs added since the last call to beginStep */
+    long[] begun = new long[16];
+
+    int numBegun = 0;
+
+    /** pairs removed since the last call to beginStep */
+    long[] ended = new long[16];
+
+    int numEnded = 0;
+
+    /**
+     * Creates an empty pair cache
+     */
+    public PairCache() {
+        allocate( 128 );
+    }
+
+    private void allocate( int capacity ) {
+        table = new long[capacity];
+        tableIndex = new int[capacity];
+        Arrays.fill( table, EMPTY );
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param i
+     * @param j
+     * @return the key of the pair of bodies with the given indices, independent of their order
+     */
+    public static long key( int i, int j ) {
+        return i < j ? ((long) i << 32) | j : ((long) j << 32) | i;
+    }
+
+    /**
+     * @param key
+     * @return the smaller body index of the pair
+     */
+    public static int first( long key ) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @param key
+     * @return the larger body index of the pair
+     */
+    public static int second( long key ) {
+        return (int) key;
+    }
+
+    private int home( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int slot( long key ) {
+        int h = home( key );
+        while ( table[h] != EMPTY && table[h] != key ) {
+            h = (h + 1) & mask;
+        }
+        return h;
+    }
+
+    /**
+     * @return number of pairs in the cache
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param k
+     * @return the key of the k-th pair in the dense list
+     */
+    public long get( int k ) {
+        return list[k];
+    }
+
+    /**
+     * @param key
+     * @return true if the pair is in the cache
+     */
+    public boolean contains( long key ) {
+        return table[slot(key)] == key;
+    }
+
+    /**
+     * Adds a pair, recording a pair begin event if it was not already in the cache
+     * @param key
+     * @return true if the pair is new
+     */
+    public boolean add( long key ) {
+        if ( 2 * (size + 1) > table.length ) {
+            allocate( table.length * 2 );
+            for ( int k = 0; k < size; k++ ) {
+                int h = slot( list[k] );
+                table[h] = list[k];
+                tableIndex[h] = k;
+            }
+        }
+        int h = slot( key );
+        if ( table[h] == key ) return false;
+        table[h] = key;
+        tableIndex[h] = size;
+        if ( size == list.length ) {
+            list = Arrays.copyOf( list, size * 2 );
+        }
+        list[size++] = key;
+        if ( numBegun == begun.length ) {
+            begun = Arrays.copyOf( begun, numBegun * 2 );
+        }
+        begun[numBegun++] = key;
+        return true;
+    }
+
+    /**
+     * Removes a pair, recording a pair end event.  The last pair of the dense list
+     * takes the place of the removed pair.
+     * @param key
+     * @return true if the pair was in the cache
+     */
+    public boolean remove( long key ) {
+        int h = slot( key );
+        if ( table[h] == EMPTY ) return false;
+        int index = tableIndex[h];
+        deleteSlot( h );
+        size--;
+        if ( index != size ) {
+            long moved = list[size];
+            list[index] = moved;
+            tableIndex[slot(moved)] = index;
+        }
+        if ( numEnded == ended.length ) {
+            ended = Arrays.copyOf( ended, numEnded * 2 );
+        }
+        ended[numEnded++] = key;
+        return true;
+    }
+
+    /**
+     * Empties a slot, shifting back the following keys of the probe sequence so that
+     * no tombstones are needed.
+     * @param h
+     */
+    private void deleteSlot( int h ) {
+        table[h] = EMPTY;
+        int j = h;
+        while ( true ) {
+            j = (j + 1) & mask;
+            if ( table[j] == EMPTY ) return;
+            int k = home( table[j] );
+            // the key at j can fill the hole at h unless its home lies cyclically in (h, j]
+            boolean canMove = j > h ? ( k <= h || k > j ) : ( k <= h && k > j );
+            if ( canMove ) {
+                table[h] = table[j];
+                tableIndex[h] = tableIndex[j];
+                table[j] = EMPTY;
+                h = j;
+            }
+        }
+    }
+
+    /**
+     * Forgets the begin and end events of the previous step
+     */
+    public void beginStep() {
+        numBegun = 0;
+        numEnded = 0;
+    }
+
+    /**
+     * Removes all pairs without recording end events
+     */
+    public void clear() {
+        Arrays.fill( table, EMPTY );
+        size = 0;
+        numBegun = 0;
+        numEnded = 0;
+    }
+
+}
@@ -0,0 +1,56 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+/**
+ * Growable list of body pairs stored as long keys (see PairCache.key), used as
+ * the output buffer of the broad phase.  Sorting the keys gives the canonical
+ * pair order, by the smaller body index and then by the larger one.
+ * @author kry
+ */
+public class PairList {
+
+    /** pair keys */
+    long[] keys = new long[64];
+
+    /** number of pairs in the list */
+    int size = 0;
+
+    /**
+     * Removes all pairs
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds the pair of bodies with the given indices
+     * @param i
+     * @param j
+     */
+    public void add( int i, int j ) {
+        if ( size == keys.length ) {
+            keys = Arrays.copyOf( keys, size * 2 );
+        }
+        keys[size++] = PairCache.key( i, j );
+    }
+
+    /**
+     * Appends all pairs of another list
+     * @param other
+     */
+    public void addAll( PairList other ) {
+        if ( size + other.size > keys.length ) {
+            keys = Arrays.copyOf( keys, Math.max( 2 * keys.length, size + other.size ) );
+        }
+        System.arraycopy( other.keys, 0, keys, size, other.size );
+        size += other.size;
+    }
+
+    /**
+     * Sorts the pairs into the canonical order
+     */
+    public void sort() {
+        Arrays.sort( keys, 0, size );
+    }
+
+}
@@ -0,0 +1,29 @@
+package comp559.lcp;
+
+/**
+ * State kept between steps for a pair of bodies in the narrow phase: the front of 
+ * the last traversal of their bounding volume test tree, i.e., the node pairs at 
+ * which the descent stopped because the discs were separated or both nodes were leaves.
+ * Node pairs are stored in depth first order, so that a traversal starting from the
+ * front finds the leaf pairs in the same order as one starting from the roots.  The gap
+ * found by the last traversal is also kept for conservative advancement.
+ * @author kry
+ */
+public class PairState {
+
+    /** node pairs of the front, the node of the first body followed by that of the second */
+    int[] front = new int[16];
+
+    /** number of node pairs in the front */
+    int size = 0;
+
+    /** lower bound on the distance between the bodies at the last traversal, zero if unknown or touching */
+    double gap = 0;
+
+    /** distance travelled by each body at the last traversal, see RigidBody.travel */
+    double travel1, travel2;
+
+    /** visit ID of the last step that used this state */
+    int lastVisit = -1;
+
+}
@@ -0,0 +1,137 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+/**
+ * Map from ordered body pairs to their PairState, stored in an open addressing hash 
+ * table with linear probing, with the states also kept in a dense list.  States not
+ * used during a step are dropped at the end of it, so a pair that leaves the narrow
+ * phase starts again from the roots when it comes back.
+ * @author kry
+ */
+public class PairStateCache {
+
+    private static final long EMPTY = -1;
+
+    /** hash table of pair keys, EMPTY for a free slot */
+    private long[] table;
+
+    /** position in the dense list of the key in each slot */
+    private int[] tableIndex;
+
+    private int mask;
+
+    /** dense list of the pair keys and states */
+    private long[] keys = new long[64];
+
+    private PairState[] states = new PairState[64];
+
+    private int size = 0;
+
+    /**
+     * Creates an empty cache
+     */
+    public PairStateCache() {
+        allocate( 128 );
+    }
+
+    private void allocate( int capacity ) {
+        table = new long[capacity];
+        tableIndex = new int[capacity];
+        Arrays.fill( table, EMPTY );
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param body1
+     * @param body2
+     * @return the key of the ordered pair of bodies
+     */
+    public static long key( RigidBody body1, RigidBody body2 ) {
+        return ((long) body1.index << 32) | body2.index;
+    }
+
+    private int slot( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int s = (int) (h ^ (h >>> 32)) & mask;
+        while ( table[s] != EMPTY && table[s] != key ) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    /**
+     * @return number of pairs with a state
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the state of a pair, creating an empty one if there is none
+     * @param key
+     * @return the state
+     */
+    public PairState get( long key ) {
+        int s = slot( key );
+        if ( table[s] == key ) return states[tableIndex[s]];
+        if ( 2 * (size + 1) > table.length ) {
+            allocate( table.length * 2 );
+            rehash();
+            s = slot( key );
+        }
+        if ( size == keys.length ) {
+            keys = Arrays.copyOf( keys, size * 2 );
+            states = Arrays.copyOf( states, size * 2 );
+        }
+        if ( states[size] == null ) {
+            states[size] = new PairState();
+        }
+        PairState state = states[size];
+        state.size = 0;
+        state.gap = 0;
+        keys[size] = key;
+        table[s] = key;
+        tableIndex[s] = size;
+        size++;
+        return state;
+    }
+
+    private void rehash() {
+        for ( int k = 0; k < size; k++ ) {
+            int s = slot( keys[k] );
+            table[s] = keys[k];
+            tableIndex[s] = k;
+        }
+    }
+
+    /**
+     * Drops the states that were not used with the given visit ID.  The dropped 
+     * state objects are kept at the end of the dense list to be reused.
+     * @param visit
+     */
+    public void removeUnused( int visit ) {
+        int kept = 0;
+        for ( int k = 0; k < size; k++ ) {
+            if ( states[k].lastVisit == visit ) {
+                PairState tmp = states[kept];
+                states[kept] = states[k];
+                states[k] = tmp;
+                keys[kept] = keys[k];
+                kept++;
+            }
+        }
+        if ( kept == size ) return;
+        size = kept;
+        Arrays.fill( table, EMPTY );
+        rehash();
+    }
+
+    /**
+     * Removes all states
+     */
+    public void clear() {
+        Arrays.fill( table, EMPTY );
+        size = 0;
+    }
+
+}
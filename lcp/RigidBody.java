@@ -3,6 +3,8 @@ package comp559.lcp;
 import java.util.ArrayList;
 import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL2;
@@ -32,6 +34,11 @@ public class RigidBody {
     ArrayList<Block> boundaryBlocks;
     ArrayList<Block> spPos;    
     BVNode root;
+    /** Bounding volume tree flattened into arrays for the narrow phase */
+    FlatBVH bvh;
+    
+    /** Convex hull of the boundary blocks in body coordinates, for rejecting pairs before the tree traversal */
+    ConvexHull hull;
     
     /** accumulator for forces acting on this body */
     Vector2d force = new Vector2d();
@@ -45,8 +52,23 @@ public class RigidBody {
         
     public boolean pinned;
     
-    public ArrayList<Integer> bucketKey = new ArrayList<Integer>();
     public boolean sleep;
+    
+    /** 
+     * Upper bound on the distance travelled by any point of the body since it was created, 
+     * accumulated from the velocities at each step, for conservative advancement
+     */
+    double travel = 0;
+    
+    /** travel of the body at the last collision detection, for reusing contacts across substeps */
+    double travelAtDetection = 0;
+    
+    /** 
+     * Speculative contact margin for the current step, a bound on the distance any point
+     * of the body can move during the step, or zero when speculative contacts are off
+     */
+    double margin = 0;
+    
     /**
      * Transforms points in Body coordinates to World coordinates
      */
@@ -143,6 +165,11 @@ public class RigidBody {
         transformW2B.invert();
 //        System.out.println("boundary blocks first pB "+boundaryBlocks.get(0).pB);
         root = new BVNode( boundaryBlocks, this );
+        // the distance field covers all pixels of the body, boundary blocks are listed in both for images
+        ArrayList<Block> mask = new ArrayList<Block>( blocks );
+        mask.addAll( boundaryBlocks );
+        bvh = new FlatBVH( new BVHShape( root, mask ), this );
+        hull = new ConvexHull( boundaryBlocks );
         pinned = isAllBlueBlocks();
         //pinned = isAllBlackBlocks();
         if ( pinned ) {
@@ -187,6 +214,28 @@ public class RigidBody {
     }
     
     
+    /**
+     * Any point of the body is within the root disc, so at most |cB| + r from the center of mass
+     * @return the largest distance from the center of mass to a point of the body
+     */
+    double reach() {
+        Disc d = root.boundingDisc;
+        return Math.sqrt( d.cB.x*d.cB.x + d.cB.y*d.cB.y ) + d.r;
+    }
+    
+    /**
+     * Bounds the distance any point of the body moves during a step, from the velocities
+     * the body will have once the forces accumulated for the step are applied, without contacts
+     * @param dt
+     * @return the bound
+     */
+    double motionBound( double dt ) {
+        double vx = v.x + dt * force.x * minv;
+        double vy = v.y + dt * force.y * minv;
+        double w = omega + dt * torque * jinv;
+        return ( Math.sqrt( vx*vx + vy*vy ) + Math.abs( w ) * reach() ) * dt;
+    }
+    
     /**
      * Creates a copy of the provided rigid body 
      * @param body
@@ -203,8 +252,11 @@ public class RigidBody {
         // we can share the blocks and boundary blocks...
         // no need to update them as they are in the correct body coordinates already        
         updateTransformations();
-        // We do need our own bounding volumes!  can't share!
-        root = new BVNode( boundaryBlocks, this );        
+        // We do need our own root disc for the broad phase and our own world positions for
+        // the narrow phase, but the flattened tree shape is the same, so it is shared
+        root = new BVNode( body.root, this );        
+        bvh = new FlatBVH( body.bvh.shape, this );
+        hull = body.hull;
         pinned = body.pinned;
         sleep = body.sleep;
         minv = body.minv;
@@ -257,6 +309,7 @@ public class RigidBody {
             x.x += v.x * dt;
             x.y += v.y * dt;
             updateTransformations();
+            travel += ( Math.sqrt( v.x*v.x + v.y*v.y ) + Math.abs( omega ) * reach() ) * dt;
         }  
         force.set(0,0);
         torque = 0;
@@ -339,6 +392,22 @@ public class RigidBody {
     	tHash = new HashMap<>();
     }
     
+    /**
+     * Removes the warm start values stored for contacts with the given body
+     * @param other
+     */
+    public void removeContactHashes( RigidBody other ) {
+    	Iterator<Map.Entry<Point2d, Double[]>> it = cHash.entrySet().iterator();
+    	while ( it.hasNext() ) {
+    		Map.Entry<Point2d, Double[]> e = it.next();
+    		if ( e.getValue()[0] == other.index ) {
+    			nHash.remove( e.getKey() );
+    			tHash.remove( e.getKey() );
+    			it.remove();
+    		}
+    	}
+    }
+    
     /** Map to keep track of display list IDs for drawing our rigid bodies efficiently */
     static private HashMap<ArrayList<Block>,Integer> mapBlocksToDisplayList = new HashMap<ArrayList<Block>,Integer>();
     
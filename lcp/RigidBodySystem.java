@@ -1,12 +1,17 @@
 package comp559.lcp;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Random;
 
 import com.jogamp.opengl.GL2;
 import com.jogamp.opengl.GLAutoDrawable;
 import javax.swing.JPanel;
 import javax.swing.border.TitledBorder;
+import javax.vecmath.Color3f;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 
@@ -24,16 +29,22 @@ public class RigidBodySystem {
 	public double imageHeight =0.0;
 	public String name ="";
 //	broad phase
-	public HashMap <Integer, ArrayList<RigidBody>> SpHash = new HashMap<Integer, ArrayList<RigidBody>>();
+	public UniformGrid grid = new UniformGrid();
+	/** grid of the pinned bodies, which never move, so it is only built when a scene is loaded */
+	public UniformGrid staticGrid = new UniformGrid();
     public int numPerRow = 0;
-    public int width = 0;
-    public int[] SHvisitID = new int [1];
+    
+    /** 90th percentile of the root bounding disc radii of the free bodies at the last tuning of the grid */
+    public double tunedRadius = 0;
+    
+    /** number of free bodies at the last tuning of the grid */
+    public int tunedCount = 0;
     
     public double simulationTime = 0;
     
 	public ArrayList<RigidBody> bodies = new ArrayList<RigidBody>();
     
-	public CollisionProcessor collisionProcessor = new CollisionProcessor(bodies,SpHash);
+	public CollisionProcessor collisionProcessor = new CollisionProcessor(bodies,grid,staticGrid);
     
     public MouseSpringForce mouseSpring;
     
@@ -57,12 +68,149 @@ public class RigidBodySystem {
     public void add( RigidBody body ) {
         bodies.add( body );
     }
+    
+    /**
+     * Adds the bodies described in a text file written by LCPApp's saveTxt, then tunes the grid.
+     * The system should be cleared first.
+     * @param f
+     * @throws IOException
+     */
+    public void loadTxt( File f ) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader (f));
+        br.readLine();
+        imageWidth = Double.parseDouble(br.readLine());
+        br.readLine();
+        imageHeight = Double.parseDouble(br.readLine());
+        br.readLine();
+        int numBodies = Integer.parseInt(br.readLine());
+        SHinit(imageWidth, imageHeight);
+        for(int i = 0; i<numBodies ;i++ ) {
+        	ArrayList<Block> blocks = new ArrayList<Block>();
+        	ArrayList<Block> boundaryBlocks = new ArrayList<Block>();
+        	//ArrayList<Block> spPos = new ArrayList<Block>();
+        	//Blocks:
+        	br.readLine();
+        	String[] blockList = br.readLine().split(";");
+            int eachi = -1;
+            int eachj = -1;
+        	Color3f eachc = new Color3f();
+        	for(int j=0; j<blockList.length;j++) {
+        		String[] eachBlock = blockList[j].split(" ");
+        		eachi = Integer.parseInt(eachBlock[0]);
+        		eachj = Integer.parseInt(eachBlock[1]);
+        		String temp = eachBlock[2];
+        		Float cx = Float.parseFloat(temp.substring(1,temp.length()-1));
+        		temp = eachBlock[3];
+        		Float cy = Float.parseFloat(temp.substring(0,temp.length()-1));
+        		temp = eachBlock[4];
+        		Float cz = Float.parseFloat(temp.substring(0,temp.length()-1));
+        		eachc.set(cx,cy,cz);
+        		Block block = new Block(eachi,eachj,eachc);
+        		blocks.add(block);
+        	}
+        	//System.out.println("blocks size =" +blocks.size());
+        	//BoundaryBlocks:
+        	br.readLine();
+        	blockList = br.readLine().split(";");
+        	for(int j=0; j<blockList.length;j++) {
+        		String[] eachBlock = blockList[j].split(" ");
+        		eachi = Integer.parseInt(eachBlock[0]);
+        		eachj = Integer.parseInt(eachBlock[1]);
+        		String temp = eachBlock[2];
+        		Float cx = Float.parseFloat(temp.substring(1,temp.length()-1));
+        		temp = eachBlock[3];
+        		Float cy = Float.parseFloat(temp.substring(0,temp.length()-1));
+        		temp = eachBlock[4];
+        		Float cz = Float.parseFloat(temp.substring(0,temp.length()-1));
+        		eachc.set(cx,cy,cz);
+        		Block block = new Block(eachi,eachj,eachc);
+        		boundaryBlocks.add(block);
+        	}
+        	//System.out.println("boundary blocks size =" +boundaryBlocks.size());
+        	RigidBody body = new RigidBody(blocks,boundaryBlocks);
+        	bodies.add(body);
+        }
+        br.close();
+        tuneGrid();
+    }
+    
+    /**
+     * Sets up the spatial hash grid to cover the image, with numPerRow cells per row 
+     * until the cell size is tuned to the bodies with tuneGrid()
+     * @param w image width
+     * @param h image height
+     */
     public void SHinit(double w, double h) {
     	imageWidth = w;
     	imageHeight =h;
     	numPerRow = 3;
-        width = (int)Math.ceil(imageWidth/numPerRow);
-        SHvisitID = new int [numPerRow*numPerRow*100];
+        grid.setup( 0, 0, imageWidth, imageHeight, Math.ceil(imageWidth/numPerRow) );
+        staticGrid.setup( 0, 0, imageWidth, imageHeight, Math.ceil(imageWidth/numPerRow) );
+    }
+    
+    /**
+     * Chooses the grid cell size from the distribution of the root bounding disc radii of
+     * the free bodies, then sets up both grids and rebuilds the static grid.  Cells are 
+     * twice the 90th percentile radius so that most bodies overlap no more than 2x2 cells.
+     * Cells are also kept large enough to have no more than about 4 cells per body.
+     * Without free bodies, the image is split into numPerRow cells per row.
+     * This must be called once the bodies of a scene are loaded.
+     */
+    public void tuneGrid() {
+        ArrayList<Double> radii = new ArrayList<Double>();
+        for ( RigidBody b : bodies ) {
+            if ( b.pinned ) continue;
+            radii.add( b.root.boundingDisc.r );
+        }
+        double cellSize = Math.ceil( imageWidth / numPerRow );
+        tunedCount = radii.size();
+        tunedRadius = 0;
+        if ( ! radii.isEmpty() ) {
+            Collections.sort( radii );
+            tunedRadius = radii.get( (int) (0.9 * (radii.size() - 1)) );
+            cellSize = Math.max( 2 * tunedRadius, Math.sqrt( imageWidth * imageHeight / (4.0 * bodies.size()) ) );
+        }
+        grid.setup( 0, 0, imageWidth, imageHeight, cellSize );
+        staticGrid.setup( 0, 0, imageWidth, imageHeight, cellSize );
+        buildStaticGrid();
+    }
+    
+    /**
+     * Tunes the grid again if the number of free bodies changed by more than 25% since the
+     * last tuning, for instance as the factory adds bodies.
+     */
+    public void retuneGridIfNeeded() {
+        int count = 0;
+        for ( RigidBody b : bodies ) {
+            if ( ! b.pinned ) count++;
+        }
+        if ( Math.abs( count - tunedCount ) > 0.25 * tunedCount ) {
+            tuneGrid();
+        }
+    }
+    
+    /**
+     * Inserts the pinned bodies into the static grid, in every cell overlapped by the box 
+     * around their root bounding disc.
+     */
+    public void buildStaticGrid() {
+        staticGrid.clear();
+        for ( RigidBody b : bodies ) {
+            if ( !b.pinned ) continue;
+            staticGrid.beginBody();
+            Disc d = b.root.boundingDisc;
+            d.updatecW();
+            int x0 = staticGrid.cellX( d.cW.x - d.r );
+            int x1 = staticGrid.cellX( d.cW.x + d.r );
+            int y0 = staticGrid.cellY( d.cW.y - d.r );
+            int y1 = staticGrid.cellY( d.cW.y + d.r );
+            for ( int y = y0; y <= y1; y++ ) {
+                for ( int x = x0; x <= x1; x++ ) {
+                    staticGrid.insert( staticGrid.cellIndex( x, y ), b.index );
+                }
+            }
+        }
+        staticGrid.build();
     }
     /**
      * Applies a small random acceleration to all bodies
@@ -108,54 +256,11 @@ public class RigidBodySystem {
         
         if ( processCollisions.getValue() ) {
             // process collisions, given the current time step
-        	collisionProcessor.SpHash = this.SpHash;
             collisionProcessor.processCollisions( dt );
         }
         // advance the system by the given time step
         for ( RigidBody b : bodies ) {
             b.advanceTime(dt);
-	//         we identify its cell and add to the SpHash 
-            if(collisionProcessor.SpatialHash.getValue()) {
-            	int key = 0;
-            	//TODO: check here 
-            	if(b.pinned||b.sleep) {
-	        		for(Block bl : b.boundaryBlocks) {
-	        			key = (int)(Math.floor(bl.j/(imageWidth/numPerRow)) + Math.floor((bl.i-1)/imageHeight));
-	//        			if(SHvisitID[key]!=collisionProcessor.visitID) {
-	//        				SpHash.remove(key);
-	        			if (SpHash.containsKey(key)) {
-		    				if(!SpHash.get(key).contains(b))
-			    				SpHash.get(key).add(b);
-			    		}else {
-			    			ArrayList<RigidBody> temp = new ArrayList <RigidBody>();
-			    			temp.add(b);
-			    			SpHash.put(key,temp);
-			    		}
-			    		if(!b.bucketKey.contains(key))
-			    			b.bucketKey.add(key);
-	//		    		SHvisitID[key]=collisionProcessor.visitID;
-	        		}
-	        	/**if you wanna run factory, please comment this else block
-	        	 * **
-	        	 */
-            	}else {
-        			key = (int)(Math.floor(b.x.x/(imageWidth/numPerRow)) + Math.floor((b.x.y-1)/imageHeight));
-//        			if(SHvisitID[key]!=collisionProcessor.visitID) {
-//        				SpHash.remove(key);
-        			if (SpHash.containsKey(key)) {
-	    				if(!SpHash.get(key).contains(b))
-		    				SpHash.get(key).add(b);
-		    		}else {
-		    			ArrayList<RigidBody> temp = new ArrayList <RigidBody>();
-		    			temp.add(b);
-		    			SpHash.put(key,temp);
-		    		}
-		    		if(!b.bucketKey.contains(key))
-		    			b.bucketKey.add(key);
-//		    		SHvisitID[key]=collisionProcessor.visitID;
-            	}
-
-	    	}
         }
         
         computeTime = (System.nanoTime() - now) / 1e9;
@@ -203,6 +308,8 @@ public class RigidBodySystem {
     public void clear() {
         bodies.clear();
         RigidBody.nextIndex = 0;
+        staticGrid.clear();
+        staticGrid.build();
         reset();
     }
     
@@ -234,12 +341,12 @@ public class RigidBodySystem {
         }
         if ( drawAllBoundingVolumes.getValue() ) {
             for ( RigidBody b : bodies ) {
-                b.root.display( drawable );
+                b.bvh.display( drawable );
             }
         }        
         if ( drawBoundingVolumesUsed.getValue() ) {
             for ( RigidBody b : bodies ) {
-                b.root.displayVisitBoundary( drawable, collisionProcessor.visitID );
+                b.bvh.displayVisitBoundary( drawable, collisionProcessor.visitID );
             }
         }
         if ( drawContactGraph.getValue() ) {
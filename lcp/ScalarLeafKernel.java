@@ -0,0 +1,56 @@
+package comp559.lcp;
+
+/**
+ * Plain loop implementation of the leaf kernel, and the place from which the
+ * SIMD kernel is loaded.
+ * @author kry
+ */
+public class ScalarLeafKernel implements LeafKernel {
+
+    /** name of the Vector API kernel, found in the vector source folder */
+    static final String VECTOR_KERNEL = "comp559.lcp.VectorLeafKernel";
+
+    private static LeafKernel vectorKernel = null;
+
+    private static boolean vectorKernelLoaded = false;
+
+    @Override
+    public int collide( double[] x1, double[] y1, int start1, int end1,
+                        double[] x2, double[] y2, int start2, int end2,
+                        double d2, int[] hits ) {
+        int numHits = 0;
+        for ( int i = start1; i < end1; i++ ) {
+            double x = x1[i];
+            double y = y1[i];
+            for ( int j = start2; j < end2; j++ ) {
+                double dx = x2[j] - x;
+                double dy = y2[j] - y;
+                if ( dx*dx + dy*dy < d2 ) {
+                    hits[numHits++] = i;
+                    hits[numHits++] = j;
+                }
+            }
+        }
+        return numHits / 2;
+    }
+
+    /**
+     * Loads the Vector API kernel the first time it is asked for.  The kernel class
+     * is only there when the vector folder was compiled, and it only links when the
+     * JVM was started with --add-modules jdk.incubator.vector.
+     * @return the SIMD kernel, or null if it is not available
+     */
+    static synchronized LeafKernel getVectorKernel() {
+        if ( ! vectorKernelLoaded ) {
+            vectorKernelLoaded = true;
+            try {
+                vectorKernel = (LeafKernel) Class.forName( VECTOR_KERNEL ).getDeclaredConstructor().newInstance();
+            } catch ( Throwable e ) {
+                System.out.println( "Vector API leaf kernel not available, using the scalar kernel (" + e + ")" );
+                vectorKernel = null;
+            }
+        }
+        return vectorKernel;
+    }
+
+}
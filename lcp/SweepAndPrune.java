@@ -0,0 +1,163 @@
+package comp559.lcp;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental sort and sweep broad phase on the x and y axes.  The interval endpoints
+ * of the box around the root bounding disc of every body are kept in a persistent array
+ * per axis, re-sorted with an insertion sort on every step.  Each swap of a min and a
+ * max endpoint during the sort is a change in the overlap of two intervals, and the
+ * set of pairs with overlapping boxes is updated from these swaps only.  Bodies barely
+ * move between steps, so the sort and the update are close to linear in the number of
+ * bodies, even when all intervals overlap on one axis, as in a tall stack.
+ * @author kry
+ */
+public class SweepAndPrune {
+
+    /** endpoint values along x and along y, kept sorted between steps */
+    private double[][] endValue = new double[2][0];
+
+    /** endpoint identifiers, twice the body index, plus one for a max endpoint */
+    private int[][] endID = new int[2][0];
+
+    /** box of each body on the two axes, for the overlap test on a swap */
+    private double[][] lo = new double[2][0];
+
+    private double[][] hi = new double[2][0];
+
+    /** pairs of bodies with overlapping boxes */
+    private PairCache overlaps = new PairCache();
+
+    /** number of bodies with endpoints in the arrays */
+    private int numBodies = 0;
+
+    /** number of endpoint swaps done by the last sort, small when the scene is coherent */
+    int swaps = 0;
+
+    /**
+     * Forgets all bodies, for instance when the system is cleared
+     */
+    public void clear() {
+        numBodies = 0;
+        overlaps.clear();
+    }
+
+    /**
+     * Updates the endpoints from the current positions of the bodies, restores the sorted
+     * order, and updates the overlapping pairs.  New bodies are appended at the end and
+     * find their place with the insertion sort.
+     * @param bodies
+     */
+    public void update( List<RigidBody> bodies ) {
+        int n = bodies.size();
+        if ( n < numBodies ) clear();
+        if ( lo[0].length < n ) {
+            for ( int a = 0; a < 2; a++ ) {
+                endValue[a] = Arrays.copyOf( endValue[a], 4*n );
+                endID[a] = Arrays.copyOf( endID[a], 4*n );
+                lo[a] = Arrays.copyOf( lo[a], 2*n );
+                hi[a] = Arrays.copyOf( hi[a], 2*n );
+            }
+        }
+        for ( int a = 0; a < 2; a++ ) {
+            for ( int i = numBodies; i < n; i++ ) {
+                endID[a][2*i] = 2*i;
+                endID[a][2*i+1] = 2*i+1;
+            }
+        }
+        numBodies = n;
+        for ( int i = 0; i < n; i++ ) {
+            RigidBody b = bodies.get(i);
+            Disc d = b.root.boundingDisc;
+            d.updatecW();
+            double r = d.r + b.margin;
+            lo[0][i] = d.cW.x - r;
+            hi[0][i] = d.cW.x + r;
+            lo[1][i] = d.cW.y - r;
+            hi[1][i] = d.cW.y + r;
+        }
+        overlaps.beginStep();
+        swaps = 0;
+        sort( 0 );
+        sort( 1 );
+    }
+
+    /**
+     * Insertion sort of the endpoints of one axis.  A min endpoint moving before a max
+     * endpoint starts the overlap of the two intervals on this axis, and the pair is added
+     * if the boxes overlap on the other axis too.  A max endpoint moving before a min
+     * endpoint ends the overlap, and the pair is removed.
+     * @param a axis, 0 for x and 1 for y
+     */
+    private void sort( int a ) {
+        double[] value = endValue[a];
+        int[] ids = endID[a];
+        for ( int k = 0; k < 2*numBodies; k++ ) {
+            int id = ids[k];
+            value[k] = (id & 1) == 0 ? lo[a][id >> 1] : hi[a][id >> 1];
+        }
+        for ( int k = 1; k < 2*numBodies; k++ ) {
+            double v = value[k];
+            int id = ids[k];
+            int m = k;
+            // min endpoints go before max endpoints of equal value so that touching intervals overlap
+            while ( m > 0 && ( value[m-1] > v || ( value[m-1] == v && (ids[m-1] & 1) == 1 && (id & 1) == 0 ) ) ) {
+                int other = ids[m-1];
+                if ( (id & 1) != (other & 1) && (id >> 1) != (other >> 1) ) {
+                    if ( (id & 1) == 0 ) {
+                        if ( overlap( id >> 1, other >> 1 ) ) overlaps.add( PairCache.key( id >> 1, other >> 1 ) );
+                    } else {
+                        overlaps.remove( PairCache.key( id >> 1, other >> 1 ) );
+                    }
+                }
+                value[m] = value[m-1];
+                ids[m] = other;
+                m--;
+            }
+            value[m] = v;
+            ids[m] = id;
+            swaps += k - m;
+        }
+    }
+
+    private boolean overlap( int i, int j ) {
+        return lo[0][i] <= hi[0][j] && lo[0][j] <= hi[0][i] && lo[1][i] <= hi[1][j] && lo[1][j] <= hi[1][i];
+    }
+
+    /**
+     * @return the number of pairs with overlapping boxes
+     */
+    public int numPairs() {
+        return overlaps.size();
+    }
+
+    /**
+     * Reports all of the overlapping pairs, see findPairs( bodies, from, to, out ).
+     * @param bodies
+     * @param out list to which the pairs are added
+     */
+    public void findPairs( List<RigidBody> bodies, PairList out ) {
+        findPairs( bodies, 0, overlaps.size(), out );
+    }
+
+    /**
+     * Reports a range of the pairs with overlapping boxes, so that disjoint ranges can be
+     * reported independently.  Pairs where neither body is awake, or with root discs that
+     * do not intersect, are skipped.  Must be called after update().
+     * @param bodies
+     * @param from first pair of the range
+     * @param to end of the range (exclusive)
+     * @param out list to which the pairs are added
+     */
+    public void findPairs( List<RigidBody> bodies, int from, int to, PairList out ) {
+        for ( int k = from; k < to; k++ ) {
+            long key = overlaps.get(k);
+            RigidBody b1 = bodies.get( PairCache.first(key) );
+            RigidBody b2 = bodies.get( PairCache.second(key) );
+            if ( (b1.pinned || b1.sleep) && (b2.pinned || b2.sleep) ) continue;
+            if ( ! b1.root.boundingDisc.intersects( b2.root.boundingDisc ) ) continue;
+            out.add( PairCache.first(key), PairCache.second(key) );
+        }
+    }
+
+}
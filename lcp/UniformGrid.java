@@ -0,0 +1,199 @@
+package comp559.lcp;
+import java.util.Arrays;
+
+/**
+ * Uniform grid for the broad phase.  Bodies are inserted as (cell, body) entries
+ * which are then counting sorted by cell index into flat arrays, so that the grid
+ * can be rebuilt every step without boxed keys or per cell lists.
+ * Cells are indexed with real 2D coordinates, i.e., cell = cy * cols + cx.
+ * Positions outside of the grid are clamped to the border cells.
+ * @author kry
+ */
+public class UniformGrid {
+
+    /** world position of the corner of cell (0,0) */
+    double originX, originY;
+
+    /** side length of a square cell */
+    double cellSize = 1;
+
+    /** number of cells in the x direction */
+    int cols = 1;
+
+    /** number of cells in the y direction */
+    int rows = 1;
+
+    /** index of the first entry of each cell in cellBodies, valid after build() */
+    int[] cellStart = new int[1];
+
+    /** number of entries in each cell, valid after build() */
+    int[] cellCount = new int[1];
+
+    /** body indices sorted by cell, valid after build() */
+    int[] cellBodies = new int[64];
+
+    /** number of inserted entries */
+    int numEntries = 0;
+
+    /** unsorted cell of each entry */
+    private int[] entryCell = new int[64];
+
+    /** unsorted body of each entry */
+    private int[] entryBody = new int[64];
+
+    /** last body mark for each cell, used to avoid inserting a body twice in the same cell */
+    private int[] cellMark = new int[1];
+
+    private int mark = 0;
+
+    /** running insertion position of each cell during build() */
+    private int[] cellFill = new int[1];
+
+    /**
+     * Sets the extent and resolution of the grid.  Bodies can leave this
+     * region, in which case they are clamped into the border cells.
+     * @param x0
+     * @param y0
+     * @param width
+     * @param height
+     * @param cellSize
+     */
+    public void setup( double x0, double y0, double width, double height, double cellSize ) {
+        originX = x0;
+        originY = y0;
+        this.cellSize = cellSize;
+        cols = Math.max( 1, (int) Math.ceil( width / cellSize ) );
+        rows = Math.max( 1, (int) Math.ceil( height / cellSize ) );
+        int numCells = cols * rows;
+        cellStart = new int[numCells];
+        cellCount = new int[numCells];
+        cellMark = new int[numCells];
+        cellFill = new int[numCells];
+        mark = 0;
+        numEntries = 0;
+    }
+
+    /**
+     * Sets the extent and resolution of the grid to those of another grid
+     * @param other
+     */
+    public void setup( UniformGrid other ) {
+        setup( other.originX, other.originY, other.cols * other.cellSize, other.rows * other.cellSize, other.cellSize );
+        cols = other.cols;
+        rows = other.rows;
+    }
+
+    /**
+     * @param other
+     * @return true if both grids have the same cells
+     */
+    public boolean sameCells( UniformGrid other ) {
+        return originX == other.originX && originY == other.originY && cellSize == other.cellSize 
+                && cols == other.cols && rows == other.rows;
+    }
+
+    /**
+     * @param x world x coordinate
+     * @return column of the cell containing x
+     */
+    public int cellX( double x ) {
+        int cx = (int) Math.floor( (x - originX) / cellSize );
+        return cx < 0 ? 0 : ( cx >= cols ? cols - 1 : cx );
+    }
+
+    /**
+     * @param y world y coordinate
+     * @return row of the cell containing y
+     */
+    public int cellY( double y ) {
+        int cy = (int) Math.floor( (y - originY) / cellSize );
+        return cy < 0 ? 0 : ( cy >= rows ? rows - 1 : cy );
+    }
+
+    /**
+     * @param cx
+     * @param cy
+     * @return flat cell index
+     */
+    public int cellIndex( int cx, int cy ) {
+        return cy * cols + cx;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        numEntries = 0;
+    }
+
+    /**
+     * Starts the insertion of a new body.  Repeated insertions of the same body
+     * into the same cell are ignored until the next call to this method.
+     */
+    public void beginBody() {
+        mark++;
+    }
+
+    /**
+     * Adds an entry for the given body in the given cell
+     * @param cell
+     * @param body
+     */
+    public void insert( int cell, int body ) {
+        if ( cellMark[cell] == mark ) return;
+        cellMark[cell] = mark;
+        if ( numEntries == entryCell.length ) {
+            entryCell = Arrays.copyOf( entryCell, numEntries * 2 );
+            entryBody = Arrays.copyOf( entryBody, numEntries * 2 );
+        }
+        entryCell[numEntries] = cell;
+        entryBody[numEntries] = body;
+        numEntries++;
+    }
+
+    /**
+     * Sorts the inserted entries by cell with a counting sort, filling
+     * cellStart, cellCount and cellBodies.
+     */
+    public void build() {
+        Arrays.fill( cellCount, 0 );
+        for ( int k = 0; k < numEntries; k++ ) {
+            cellCount[entryCell[k]]++;
+        }
+        int start = 0;
+        for ( int c = 0; c < cellCount.length; c++ ) {
+            cellStart[c] = start;
+            start += cellCount[c];
+        }
+        if ( cellBodies.length < numEntries ) {
+            cellBodies = new int[entryCell.length];
+        }
+        System.arraycopy( cellStart, 0, cellFill, 0, cellStart.length );
+        for ( int k = 0; k < numEntries; k++ ) {
+            cellBodies[cellFill[entryCell[k]]++] = entryBody[k];
+        }
+    }
+
+    /**
+     * @return number of cells with at least one entry, valid after build()
+     */
+    public int numOccupiedCells() {
+        int count = 0;
+        for ( int c = 0; c < cellCount.length; c++ ) {
+            if ( cellCount[c] > 0 ) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return largest number of entries in a cell, valid after build()
+     */
+    public int maxCellCount() {
+        int max = 0;
+        for ( int c = 0; c < cellCount.length; c++ ) {
+            max = Math.max( max, cellCount[c] );
+        }
+        return max;
+    }
+
+}
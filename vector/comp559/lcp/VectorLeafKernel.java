@@ -0,0 +1,49 @@
+package comp559.lcp;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Leaf kernel using the incubating Vector API.  Each block of the first leaf is
+ * broadcast and tested against the blocks of the second leaf a full vector of lanes
+ * at a time, with a masked tail.  The squared distances are computed with the same
+ * operations as the scalar kernel (no fused multiply add) so the same pairs are found,
+ * and the lanes of the hit mask are reported in order.
+ * <p>
+ * This class lives in its own source folder as it needs the jdk.incubator.vector
+ * module to compile and run; it is only ever loaded by reflection from ScalarLeafKernel.
+ * @author kry
+ */
+public class VectorLeafKernel implements LeafKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int collide( double[] x1, double[] y1, int start1, int end1,
+                        double[] x2, double[] y2, int start2, int end2,
+                        double d2, int[] hits ) {
+        int numHits = 0;
+        int lanes = SPECIES.length();
+        for ( int i = start1; i < end1; i++ ) {
+            DoubleVector x = DoubleVector.broadcast( SPECIES, x1[i] );
+            DoubleVector y = DoubleVector.broadcast( SPECIES, y1[i] );
+            for ( int j = start2; j < end2; j += lanes ) {
+                VectorMask<Double> m = SPECIES.indexInRange( j, end2 );
+                DoubleVector dx = DoubleVector.fromArray( SPECIES, x2, j, m ).sub( x );
+                DoubleVector dy = DoubleVector.fromArray( SPECIES, y2, j, m ).sub( y );
+                VectorMask<Double> hit = dx.mul( dx ).add( dy.mul( dy ) ).compare( VectorOperators.LT, d2, m );
+                long bits = hit.toLong();
+                while ( bits != 0 ) {
+                    int lane = Long.numberOfTrailingZeros( bits );
+                    bits &= bits - 1;
+                    hits[numHits++] = i;
+                    hits[numHits++] = j + lane;
+                }
+            }
+        }
+        return numHits / 2;
+    }
+
+}